@@ -18,8 +18,16 @@ package org.gameontext.player;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.time.temporal.ChronoUnit;
 
@@ -32,31 +40,52 @@ import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
 
 import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
 import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerFallbacks;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerListing;
+import org.gameontext.player.control.PlayerLocationStore;
 import org.gameontext.player.entity.ErrorResponse;
 import org.gameontext.player.entity.PlayerArgument;
 import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerFields;
 import org.gameontext.player.entity.PlayerResponse;
+import org.gameontext.player.utils.JsonOutput;
+import org.gameontext.player.utils.LastGood;
+import org.gameontext.player.utils.Log;
 import org.gameontext.player.utils.SharedSecretGenerator;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import io.jsonwebtoken.Claims;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Counted;
-import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.faulttolerance.Timeout;
 import org.eclipse.microprofile.opentracing.Traced;
@@ -71,12 +100,43 @@ import javax.json.Json;
 @Path("/accounts")
 @Api( tags = {"players"})
 public class AllPlayersResource {
+    /** Upper bound on the number of players that can be requested by id at once */
+    static final int MAX_QUERY_IDS = 100;
+
+    /** Players returned per page when no limit is given */
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Upper bound on the page size. limit=0 streams every player instead */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /** Cursor origins: the in-memory listing, or the all view */
+    static final char FROM_LISTING = 'L';
+    static final char FROM_VIEW = 'V';
+
     @Context
     HttpServletRequest httpRequest;
 
+    @Context
+    UriInfo uriInfo;
+
     @Inject
     protected CouchDbConnector db;
 
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected PlayerIoExecutor executor;
+
+    @Inject
+    protected PlayerLocationStore locations;
+
+    @Inject
+    protected PlayerListing listing;
+
+    @Inject
+    protected PlayerFallbacks fallbacks;
+
     @Resource(lookup = "systemId")
     String systemId;
 
@@ -86,19 +146,22 @@ public class AllPlayersResource {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @ApiOperation(value = "List all players",
-        notes = "Get a list of registered players. Use link headers for pagination.",
+        notes = "Get a list of registered players, a page at a time. Use link headers for pagination: "
+              + "the Link rel=\"next\" header holds the URL of the next page, and is absent on the last one. "
+              + "limit=0 returns every player in one response, written as it is read. "
+              + "Listings carry an ETag: send it back in If-None-Match to get a 304 if nothing changed. "
+              + "Pass one or more id parameters to look up specific players instead: "
+              + "the response is then a map of each requested id to its player (null if unknown). "
+              + "Use fields to return only some properties of each player, e.g. fields=name,location",
         response = PlayerResponse.class,
         responseContainer = "List")
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = Messages.SUCCESSFUL, response = PlayerResponse.class),
-        @ApiResponse(code = 204, message = Messages.CONFLICT, response=ErrorResponse.class)
+        @ApiResponse(code = 204, message = Messages.CONFLICT, response=ErrorResponse.class),
+        @ApiResponse(code = 304, message = "Listing unchanged since the ETag given in If-None-Match"),
+        @ApiResponse(code = 503, message = "Database unavailable, and no earlier answer to fall back on", response=ErrorResponse.class),
+        @ApiResponse(code = 400, message = "Too many ids, invalid fields or an invalid cursor", response=ErrorResponse.class)
     })
-    @Fallback(fallbackMethod = "getAllPlayersFallback")
-    @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
-    @Timed(name = "getAllPlayers_timer",
-        reusable = true,
-        tags = "label=allPlayersResource")
     @Counted(name = "getAllPlayers_count",
         monotonic = true,
         reusable = true,
@@ -107,35 +170,316 @@ public class AllPlayersResource {
         reusable = true,
         tags = "label=allPlayersResource")
     @Traced(value = true, operationName = "getAllPlayers.response")
-    public Response getAllPlayers() throws IOException {
-        ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
-        List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
+    public void getAllPlayers(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "ids of players to look up", required = false) @QueryParam("id") List<String> ids,
+            @ApiParam(value = "comma separated properties to return", required = false) @QueryParam("fields") String fields,
+            @ApiParam(value = "maximum number of players to return (default " + DEFAULT_PAGE_SIZE + ", at most " + MAX_PAGE_SIZE + ")", required = false) @QueryParam("limit") Integer limit,
+            @ApiParam(value = "where to continue from, taken from the previous page's next link", required = false) @QueryParam("cursor") String cursor) {
+        executor.time(response, AllPlayersResource.class, "getAllPlayers_timer", "allPlayersResource");
+
+        // set by the auth filter.
+        String authId = (String) httpRequest.getAttribute("player.id");
+        // the request context is not available from the executor
+        UriBuilder self = uriInfo.getRequestUriBuilder();
+        String ifNoneMatch = httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        executor.submit(response,
+                () -> allPlayers(authId, ids, fields, limit, cursor, self, ifNoneMatch),
+                () -> getAllPlayersFallback(authId, ids, fields, limit, cursor, self));
+    }
+
+    Response allPlayers(String authId, List<String> ids, String fields,
+            Integer limit, String cursor, UriBuilder self, String ifNoneMatch) throws IOException {
+        PlayerFields projection = PlayerAccountResource.parseFields(fields);
+
+        if ( ids != null && !ids.isEmpty() ) {
+            return getPlayers(authId, ids, projection);
+        }
+
+        String position = cursor == null ? null : decodeCursor(cursor);
+        String startId = position == null ? null : position.substring(1);
+
+        // served from memory when the listing copy is available. The copy and the view
+        // order players differently: a cursor is only followed where it came from
+        boolean fromListing;
+        if ( position == null ) {
+            fromListing = listing.refresh();
+        } else if ( position.charAt(0) == FROM_VIEW ) {
+            fromListing = false;
+        } else if ( listing.refresh() ) {
+            fromListing = true;
+        } else {
+            throw new PlayerAccountModificationException(
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    "Player listing is not available",
+                    "Try again later, or start again from the first page");
+        }
+        ResponseBuilder builder = listPlayers(projection, limit, startId, self, ifNoneMatch, fromListing);
+        if ( fromListing && listing.isStale() ) {
+            return fallbacks.stale(builder, listing.getAge());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param fromListing true to read the in-memory listing, false to query the all view
+     */
+    private ResponseBuilder listPlayers(PlayerFields projection, Integer limit, String startId,
+            UriBuilder self, String ifNoneMatch, boolean fromListing) {
+        String etag = fromListing ? listing.getETag() : null;
+        if ( etag != null && matches(ifNoneMatch, etag) ) {
+            return Response.notModified().header(HttpHeaders.ETAG, etag);
+        }
+
+        if ( limit != null && limit == 0 ) {
+            return fromListing ? streamListing(projection, etag) : streamPlayers(projection);
+        }
+
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+
+        // one more than the page, to find where the next one starts
+        List<PlayerDbRecord> page;
+        if ( fromListing ) {
+            page = listing.page(startId, pageSize + 1);
+        } else {
+            ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true)
+                    .limit(pageSize + 1);
+            if ( startId != null ) {
+                all.startKey(startId).startDocId(startId);
+            }
+            page = db.queryView(all, PlayerDbRecord.class);
+        }
+
+        String nextId = null;
+        if ( page.size() > pageSize ) {
+            nextId = page.get(pageSize).getId();
+            page = new ArrayList<>(page.subList(0, pageSize));
+        }
+        // the listing has already applied current locations
+        List<PlayerDbRecord> results = fromListing ? page : locations.current(page);
+
+        ResponseBuilder builder;
         if ( results.isEmpty() )
-            return Response.noContent().build();
-        else {
+            return Response.noContent();
+        else if ( projection != PlayerFields.ALL ) {
+            StreamingOutput body = out -> {
+                try (JsonGenerator gen = JsonOutput.generator(out)) {
+                    gen.writeStartArray();
+                    for (PlayerDbRecord record : results) {
+                        projection.write(gen, record, false);
+                    }
+                    gen.writeEndArray();
+                }
+            };
+            builder = Response.ok().entity(body);
+        } else {
             List<PlayerResponse> prs = results.stream()
                     .map(record -> {PlayerResponse pr = new PlayerResponse(record); pr.setCredentials(null); return pr;})
                     .collect(Collectors.toList());
 
-            // TODO -- this should be done better. Stream, something.
+            // pages are bounded: use limit=0 to stream everything
             GenericEntity<List<PlayerResponse>> entity = new GenericEntity<List<PlayerResponse>>(prs) {};
 
-            return Response.ok().entity(entity).build();
+            builder = Response.ok().entity(entity);
+        }
+
+        if ( nextId != null && self != null ) {
+            URI next = self.clone()
+                    .replaceQueryParam("cursor", encodeCursor(nextId, fromListing))
+                    .replaceQueryParam("limit", pageSize)
+                    .build();
+            builder.link(next, "next");
+        }
+        if ( etag != null ) {
+            builder.header(HttpHeaders.ETAG, etag);
+        }
+        return builder;
+    }
+
+    /**
+     * @param ifNoneMatch If-None-Match request header
+     * @return true if it lists the given tag (or is *)
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if ( ifNoneMatch == null ) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // weak comparison, as for GET
+            if ( tag.equals("*") || stripWeak(tag).equals(stripWeak(etag)) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Every player, written from the in-memory listing.
+     */
+    private ResponseBuilder streamListing(PlayerFields projection, String etag) {
+        if ( listing.size() == 0 ) {
+            return Response.noContent();
+        }
+
+        StreamingOutput body = out -> {
+            try (JsonGenerator gen = JsonOutput.generator(out)) {
+                gen.writeStartArray();
+                listing.forEach(record -> projection.write(gen, record, false), gen);
+                gen.writeEndArray();
+            }
+        };
+        return Response.ok().entity(body).header(HttpHeaders.ETAG, etag);
+    }
+
+    /**
+     * Every player, written to the response as the view is read: memory use
+     * does not depend on the number of players.
+     */
+    private ResponseBuilder streamPlayers(PlayerFields projection) {
+        // open before responding, so errors (and an empty result) can still set the status
+        StreamingViewResult view = locations.openPlayers();
+        Iterator<ViewResult.Row> rows = view.iterator();
+        if ( !rows.hasNext() ) {
+            view.close();
+            return Response.noContent();
+        }
+
+        StreamingOutput body = out -> {
+            try (JsonGenerator gen = JsonOutput.generator(out)) {
+                gen.writeStartArray();
+                locations.forEachPlayer(rows, record -> projection.write(gen, record, false), gen);
+                gen.writeEndArray();
+            } finally {
+                view.close();
+            }
+        };
+        return Response.ok().entity(body);
+    }
+
+    /**
+     * Cursors are opaque to clients: they hold where the page was read from
+     * ({@link #FROM_LISTING} or {@link #FROM_VIEW}), followed by the id of the
+     * first player of the next page.
+     */
+    static String encodeCursor(String id, boolean fromListing) {
+        String position = (fromListing ? FROM_LISTING : FROM_VIEW) + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return where the page was read from, followed by the id of the first player
+     */
+    static String decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if ( position.length() > 1
+                    && (position.charAt(0) == FROM_LISTING || position.charAt(0) == FROM_VIEW) ) {
+                return position;
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through
         }
+        throw new PlayerAccountModificationException(
+                Response.Status.BAD_REQUEST,
+                "Invalid cursor",
+                "Use the cursor from the next link of the previous page");
     }
     
-    public Response getAllPlayersFallback() {
-        List<PlayerResponse> prs = new ArrayList<PlayerResponse>();
-        PlayerResponse pr = new PlayerResponse();
-        pr.setCredentials(null); 
-        pr.setName("null");
-        pr.setFavoriteColor("null");
-        pr.setLocation(null);
-        pr.setId("null");
-        pr.setRev("null");
-        prs.add(pr);
-        GenericEntity<List<PlayerResponse>> entity = new GenericEntity<List<PlayerResponse>>(prs) {};
-        return Response.ok().entity(entity).build();
+    /**
+     * Look up several players at once: cached players are served from memory,
+     * the rest are fetched with a single _all_docs request.
+     */
+    private Response getPlayers(String authId, List<String> ids, PlayerFields projection) {
+        if ( ids.size() > MAX_QUERY_IDS ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    "Too many players requested",
+                    "At most " + MAX_QUERY_IDS + " ids can be requested at once");
+        }
+
+        Map<String, PlayerDbRecord> records = new HashMap<>();
+        for (PlayerDbRecord record : locations.current(new ArrayList<>(cache.getAll(ids).values()))) {
+            records.put(record.getId(), record);
+        }
+        fallbacks.putPlayers(fallbackKey(ids), records);
+
+        return renderPlayers(authId, ids, projection, records).build();
+    }
+
+    /**
+     * @param records player id -> player: ids without a record are written as null
+     */
+    private ResponseBuilder renderPlayers(String authId, List<String> ids, PlayerFields projection,
+            Map<String, PlayerDbRecord> records) {
+        if ( projection != PlayerFields.ALL ) {
+            StreamingOutput body = out -> {
+                try (JsonGenerator gen = JsonOutput.generator(out)) {
+                    gen.writeStartObject();
+                    for (String id : ids) {
+                        PlayerDbRecord record = records.get(id);
+                        gen.writeFieldName(id);
+                        if ( record == null ) {
+                            gen.writeNull();
+                        } else {
+                            projection.write(gen, record, !stripSensitiveData(authId, id));
+                        }
+                    }
+                    gen.writeEndObject();
+                }
+            };
+            return Response.ok().entity(body);
+        }
+
+        Map<String, PlayerResponse> result = new LinkedHashMap<>();
+        for (String id : ids) {
+            PlayerDbRecord record = records.get(id);
+            PlayerResponse pr = null;
+            if ( record != null ) {
+                pr = new PlayerResponse(record);
+                if ( stripSensitiveData(authId, id) ) {
+                    pr.setCredentials(null);
+                }
+            }
+            result.put(id, pr);
+        }
+
+        return Response.ok().entity(result);
+    }
+
+    private static String fallbackKey(List<String> ids) {
+        return String.join(",", new TreeSet<>(ids));
+    }
+
+    /**
+     * When the database is not answering: the last good answer for the same
+     * ids, or the page from the in-memory listing, marked as stale.
+     * Otherwise 503, with a Retry-After header.
+     */
+    public Response getAllPlayersFallback(String authId, List<String> ids, String fields,
+            Integer limit, String cursor, UriBuilder self) {
+        try {
+            PlayerFields projection = PlayerAccountResource.parseFields(fields);
+            if ( ids != null && !ids.isEmpty() ) {
+                LastGood.Entry<Map<String, PlayerDbRecord>> last = fallbacks.getPlayers(fallbackKey(ids));
+                if ( last != null ) {
+                    return fallbacks.stale(renderPlayers(authId, ids, projection, last.getValue()), last.getAge());
+                }
+            } else if ( listing.isLoaded() ) {
+                String position = cursor == null ? null : decodeCursor(cursor);
+                if ( position == null || position.charAt(0) == FROM_LISTING ) {
+                    String startId = position == null ? null : position.substring(1);
+                    return fallbacks.stale(listPlayers(projection, limit, startId, self, null, true), listing.getAge());
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.log(Level.FINE, this, "No fallback for player listing", e);
+        }
+        return fallbacks.unavailable();
     }
 
     /**
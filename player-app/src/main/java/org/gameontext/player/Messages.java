@@ -3,9 +3,12 @@ package org.gameontext.player;
 public class Messages {
 
     public static final String SUCCESSFUL = "Successful";
+    public static final String NOT_MODIFIED = "Not modified";
     
     public static final String NOT_FOUND = "Player not found";
     public static final String CONFLICT = "Save conflict";
     
+    public static final String INVALID_FIELDS = "Invalid fields requested";
+
     public static final String FORBIDDEN = "Caller is not authorized to ";
 }
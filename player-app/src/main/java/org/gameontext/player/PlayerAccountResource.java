@@ -15,8 +15,10 @@
  *******************************************************************************/
 package org.gameontext.player;
 
-import java.time.temporal.ChronoUnit;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
 import java.util.logging.Level;
 
 import javax.annotation.Resource;
@@ -25,28 +27,47 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.ektorp.CouchDbConnector;
 import org.gameontext.player.Kafka.PlayerEvent;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerKeyIndex;
+import org.gameontext.player.control.PlayerLocationJournal;
+import org.gameontext.player.control.PlayerLocationStore;
 import org.gameontext.player.entity.ErrorResponse;
 import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationJournalEntry;
+import org.gameontext.player.entity.LocationUpdateResult;
 import org.gameontext.player.entity.PlayerArgument;
 import org.gameontext.player.entity.PlayerCredentials;
 import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerFields;
 import org.gameontext.player.entity.PlayerLocation;
 import org.gameontext.player.entity.PlayerResponse;
+import org.gameontext.player.utils.JsonOutput;
 import org.gameontext.player.utils.Log;
 import org.gameontext.player.utils.SharedSecretGenerator;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import io.jsonwebtoken.Claims;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -58,8 +79,6 @@ import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Counted;
 import org.eclipse.microprofile.faulttolerance.Fallback;
-import org.eclipse.microprofile.faulttolerance.Retry;
-import org.eclipse.microprofile.faulttolerance.Timeout;
 import org.eclipse.microprofile.opentracing.Traced;
 /**
  * The Player service, where players remember where they are, and what they have
@@ -69,7 +88,6 @@ import org.eclipse.microprofile.opentracing.Traced;
 @Path("/accounts/{id}")
 @Api( tags = {"players"})
 public class PlayerAccountResource {
-    private static final String ACCESS_DENIED = "ACCESS_DENIED";
 
     @Context
     HttpServletRequest httpRequest;
@@ -77,6 +95,21 @@ public class PlayerAccountResource {
     @Inject
     protected CouchDbConnector db;
 
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected PlayerIoExecutor executor;
+
+    @Inject
+    protected PlayerKeyIndex keyIndex;
+
+    @Inject
+    protected PlayerLocationStore locations;
+
+    @Inject
+    protected PlayerLocationJournal journal;
+
     @Inject
     Kafka kafka;
 
@@ -86,15 +119,16 @@ public class PlayerAccountResource {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @ApiOperation(value = "Get a specific player",
-        notes = "",
+        notes = "The response carries an ETag derived from the document revision: "
+              + "send it back with If-None-Match to get 304 Not Modified if the player has not changed. "
+              + "Use fields to return only some properties, e.g. fields=name,location",
         response = PlayerResponse.class)
     @ApiResponses(value = {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response = PlayerResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_NOT_MODIFIED, message = Messages.NOT_MODIFIED),
+            @ApiResponse(code = HttpServletResponse.SC_BAD_REQUEST, message = Messages.INVALID_FIELDS, response = ErrorResponse.class),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response = ErrorResponse.class),
     })
-    @Timed(name = "getPlayerInformation_timer",
-        reusable = true,
-        tags = "label=playerAccountResource")
     @Counted(name = "getPlayerInformation_count",
         monotonic = true,
         reusable = true,
@@ -102,23 +136,50 @@ public class PlayerAccountResource {
     @Metered(name = "getPlayerInformation_meter",
         reusable = true,
         tags = "label=playerAccountResource")
-    @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
     @Traced
-    public PlayerResponse getPlayerInformation(
-            @ApiParam(value = "target player id", required = true) @PathParam("id") String id) throws IOException {
+    public void getPlayerInformation(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "target player id", required = true) @PathParam("id") String id,
+            @ApiParam(value = "comma separated properties to return", required = false) @QueryParam("fields") String fields,
+            @Context Request request) {
+        executor.time(response, PlayerAccountResource.class, "getPlayerInformation_timer", "playerAccountResource");
 
         // set by the auth filter.
         String authId = (String) httpRequest.getAttribute("player.id");
+        executor.submit(response, () -> playerInformation(authId, id, fields, request));
+    }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
-        PlayerResponse pr = new PlayerResponse(p);
+    Response playerInformation(String authId, String id, String fields, Request request) throws IOException {
+        PlayerFields projection = parseFields(fields);
+        boolean withCredentials = !unauthorizedId(authId, id);
 
-        if (unauthorizedId(authId, id)) {
+        // served from the cache when we can: a matching If-None-Match then
+        // costs neither a database round trip nor serialization
+        PlayerDbRecord stored = cache.get(id); // throws DocumentNotFoundException
+        PlayerDbRecord p = locations.current(stored);
+        EntityTag tag = entityTag(p, withCredentials, p != stored);
+
+        ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if ( notModified != null ) {
+            return notModified.tag(tag).build();
+        }
+
+        if ( projection != PlayerFields.ALL ) {
+            // write only the requested properties, straight from the record
+            StreamingOutput body = out -> {
+                try (JsonGenerator gen = JsonOutput.generator(out)) {
+                    projection.write(gen, p, withCredentials);
+                }
+            };
+            return Response.ok(body).tag(tag).build();
+        }
+
+        PlayerResponse pr = new PlayerResponse(p);
+        if ( !withCredentials ) {
             pr.setCredentials(null);
         }
 
-        return pr;
+        return Response.ok(pr).tag(tag).build();
     }
 
     @PUT
@@ -174,9 +235,13 @@ public class PlayerAccountResource {
         }
 
         db.update(fullPlayer);
-        kafka.publishPlayerEvent(PlayerEvent.UPDATE, fullPlayer);
+        cache.put(fullPlayer);
+
+        // the stored document lags write-behind moves and location documents
+        PlayerDbRecord updated = locations.current(fullPlayer);
+        kafka.publishPlayerEvent(PlayerEvent.UPDATE, updated);
 
-        PlayerResponse pr = new PlayerResponse(fullPlayer);
+        PlayerResponse pr = new PlayerResponse(updated);
         return Response.ok(pr).build();
     }
 
@@ -222,6 +287,9 @@ public class PlayerAccountResource {
 
         PlayerDbRecord p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
         db.delete(p);
+        cache.evict(id);
+        keyIndex.evict(id);
+        locations.remove(id);
 
         kafka.publishPlayerEvent(PlayerEvent.DELETE, p);
 
@@ -255,8 +323,14 @@ public class PlayerAccountResource {
         tags = "label=playerAccountResource")
     @Traced
     public Response updatePlayerLocation(@PathParam("id") String id, LocationChange update) throws IOException {
-        // we don't want to allow this method to be invoked by a user.
         Claims claims = (Claims) httpRequest.getAttribute("player.claims");
+        // NOTE: not on the I/O executor. The move is not idempotent: a timeout
+        // after it was written would lose its event, and the retry would conflict.
+        return updateLocation(claims, id, update);
+    }
+
+    Response updateLocation(Claims claims, String id, LocationChange update) throws IOException {
+        // we don't want to allow this method to be invoked by a user.
         if ( !claims.getAudience().equals("server")) {
             throw new PlayerAccountModificationException(
                     Response.Status.FORBIDDEN,
@@ -264,30 +338,20 @@ public class PlayerAccountResource {
                     "Invalid token type " + claims.getAudience());
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
-
-        String oldLocation = update.getOldLocation();
-        String newLocation = update.getNewLocation();
-        String origin = update.getOrigin();
+        LocationUpdateResult result = locations.move(id, update); // throws DocumentNotFoundException
 
         PlayerLocation finalLocation = new PlayerLocation();
+        finalLocation.setLocation(result.getLocation());
 
-        // try setting to the new location
-        int rc;
-        if (p.getLocation()==null || p.getLocation().equals(oldLocation)) {
-            p.setLocation(newLocation);
-            db.update(p);
-            Log.log(Level.FINEST, this, "{0} moved from {1} to {2}", p.getName(), oldLocation, newLocation);
-
-            rc = HttpServletResponse.SC_OK;
-            finalLocation.setLocation(newLocation);
-            kafka.publishPlayerEvent(PlayerEvent.UPDATE_LOCATION, p, origin);
-        } else {
-            rc = HttpServletResponse.SC_CONFLICT;
-            finalLocation.setLocation(p.getLocation());
+        if ( !result.isOk() ) {
+            return Response.status(HttpServletResponse.SC_CONFLICT).entity(finalLocation).build();
         }
 
-        return Response.status(rc).entity(finalLocation).build();
+        PlayerDbRecord p = result.getPlayer();
+        Log.log(Level.FINEST, this, "{0} moved from {1} to {2}", p.getName(), update.getOldLocation(), update.getNewLocation());
+        kafka.publishPlayerEvent(PlayerEvent.UPDATE_LOCATION, p, update.getOrigin());
+
+        return Response.status(HttpServletResponse.SC_OK).entity(finalLocation).build();
     }
 
     @GET
@@ -301,9 +365,6 @@ public class PlayerAccountResource {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response=PlayerLocation.class),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response=ErrorResponse.class),
     })
-    @Timed(name = "getPlayerLocation_timer",
-        reusable = true,
-        tags = "label=playerAccountResource")
     @Counted(name = "getPlayerLocation_count",
         monotonic = true,
         reusable = true,
@@ -311,18 +372,56 @@ public class PlayerAccountResource {
     @Metered(name = "getPlayerLocation_meter",
         reusable = true,
         tags = "label=playerAccountResource")
-    @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
     @Traced
-    public PlayerLocation getPlayerLocation(
-            @ApiParam(value = "target player id", required = true) @PathParam("id") String id) throws IOException {
-        PlayerDbRecord p;
-        p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
+    public void getPlayerLocation(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "target player id", required = true) @PathParam("id") String id) {
+        executor.time(response, PlayerAccountResource.class, "getPlayerLocation_timer", "playerAccountResource");
+        executor.submit(response, () -> playerLocation(id));
+    }
 
+    PlayerLocation playerLocation(String id) throws IOException {
         PlayerLocation location = new PlayerLocation();
-        location.setLocation(p.getLocation());
+        location.setLocation(locations.getLocation(id)); // throws DocumentNotFoundException
         return location;
     }
+
+    @GET
+    @Path("/location/history")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Get the recent moves of a specific player",
+        notes = "Moves are read from this instance's location journal, newest first. "
+              + "Only the latest move of a player is kept once the journal has been compacted.",
+        code = HttpServletResponse.SC_OK ,
+        response = LocationJournalEntry.class,
+        responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response=LocationJournalEntry.class),
+            @ApiResponse(code = HttpServletResponse.SC_NOT_IMPLEMENTED, message = "Location journal is not enabled", response=ErrorResponse.class),
+    })
+    @Timed(name = "getPlayerLocationHistory_timer",
+        reusable = true,
+        tags = "label=playerAccountResource")
+    @Counted(name = "getPlayerLocationHistory_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerAccountResource")
+    @Metered(name = "getPlayerLocationHistory_meter",
+        reusable = true,
+        tags = "label=playerAccountResource")
+    @Traced
+    public List<LocationJournalEntry> getPlayerLocationHistory(
+            @ApiParam(value = "target player id", required = true) @PathParam("id") String id,
+            @ApiParam(value = "maximum number of moves to return", required = false) @QueryParam("limit") @DefaultValue("20") int limit) {
+        // served from memory: no need for the I/O pool
+        if ( !journal.isEnabled() ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.NOT_IMPLEMENTED,
+                    "Location history is not available",
+                    "The player location journal is not enabled");
+        }
+        return journal.history(id, limit);
+    }
     
 
     @GET
@@ -334,9 +433,6 @@ public class PlayerAccountResource {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response=PlayerCredentials.class),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response=ErrorResponse.class),
     })
-    @Timed(name = "getPlayerCredentials_timer",
-        reusable = true,
-        tags = "label=playerAccountResource")
     @Counted(name = "getPlayerCredentials_count",
         monotonic = true,
         reusable = true,
@@ -345,12 +441,17 @@ public class PlayerAccountResource {
         reusable = true,
         tags = "label=playerAccountResource")
     @Traced
-    public PlayerCredentials getPlayerCredentials(
-            @ApiParam(value = "target player id", required = true) @PathParam("id") String id) throws IOException {
+    public void getPlayerCredentials(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "target player id", required = true) @PathParam("id") String id) {
+        executor.time(response, PlayerAccountResource.class, "getPlayerCredentials_timer", "playerAccountResource");
 
         // set by the auth filter.
         String authId = (String) httpRequest.getAttribute("player.id");
+        executor.submit(response, () -> playerCredentials(authId, id));
+    }
 
+    PlayerCredentials playerCredentials(String authId, String id) throws IOException {
         if (unauthorizedId(authId, id)) {
             if(authId==null){
                 authId="Unauthenticated User";
@@ -361,7 +462,7 @@ public class PlayerAccountResource {
                     authId + " is not allowed to view requested information");
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
+        PlayerDbRecord p = cache.get(id);  // throws DocumentNotFoundException
 
         PlayerCredentials credentials = new PlayerCredentials();
         credentials.setSharedSecret(p.getApiKey());
@@ -421,9 +522,11 @@ public class PlayerAccountResource {
         PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
 
         //if no existing apikey, or apikey exists, but has not been perma-banned..
-        if( !ACCESS_DENIED.equals(p.getApiKey())){
+        if( !PlayerDbRecord.ACCESS_DENIED.equals(p.getApiKey())){
             p.setApiKey(SharedSecretGenerator.generateApiKey());
             db.update(p);
+            cache.put(p);
+            keyIndex.evict(id);
             kafka.publishPlayerEvent(PlayerEvent.UPDATE_APIKEY, p);
             return Response.ok(p).build();
         }else{
@@ -434,6 +537,34 @@ public class PlayerAccountResource {
         }
     }
 
+    /**
+     * The tag is the document revision. Callers that can't see credentials get a
+     * different representation of the same revision, so that gets a different tag.
+     * @param locationOverlay true if the location does not come from the
+     *          player document (it then can change without a new revision,
+     *          so a digest of it is part of the tag)
+     */
+    private EntityTag entityTag(PlayerDbRecord p, boolean withCredentials, boolean locationOverlay) {
+        String value = p.getRev();
+        if ( locationOverlay ) {
+            String location = p.getLocation();
+            value += "-" + (location == null ? "none"
+                    : UUID.nameUUIDFromBytes(location.getBytes(StandardCharsets.UTF_8)).toString());
+        }
+        return new EntityTag(withCredentials ? value : value + "-public");
+    }
+
+    static PlayerFields parseFields(String fields) {
+        try {
+            return PlayerFields.parse(fields);
+        } catch (IllegalArgumentException e) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    Messages.INVALID_FIELDS,
+                    e.getMessage());
+        }
+    }
+
     private boolean unauthorizedId(String user, String player) {
         return ( user == null || !(player.equals(user) || systemId.equals(user)) );
     }
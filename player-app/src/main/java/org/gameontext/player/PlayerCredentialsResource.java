@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerKeyIndex;
+import org.gameontext.player.control.PlayerKeyIndex.KeyOwner;
+import org.gameontext.player.entity.ErrorResponse;
+import org.gameontext.player.entity.PlayerCredentials;
+import org.gameontext.player.entity.PlayerResponse;
+
+import io.jsonwebtoken.Claims;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+import org.eclipse.microprofile.metrics.annotation.Metered;
+import org.eclipse.microprofile.metrics.annotation.Counted;
+import org.eclipse.microprofile.opentracing.Traced;
+
+/**
+ * Shared secret lookup, so other services can find which player
+ * signed a request.
+ *
+ */
+@Path("/credentials")
+@Api( tags = {"players"})
+public class PlayerCredentialsResource {
+
+    @Context
+    HttpServletRequest httpRequest;
+
+    @Inject
+    protected PlayerKeyIndex keyIndex;
+
+    @Inject
+    protected PlayerIoExecutor executor;
+
+    /**
+     * POST /players/v1/credentials
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Find the player that owns a shared secret",
+        notes = "Only available to other services (server tokens). The secret is sent in the request body "
+              + "so that it does not appear in URLs or access logs. Returns the player id and name.",
+        response = PlayerResponse.class)
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response = PlayerResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response = ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_FORBIDDEN, message = Messages.FORBIDDEN + "look up shared secrets", response = ErrorResponse.class)
+    })
+    @Counted(name = "findPlayerBySharedSecret_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerCredentialsResource")
+    @Metered(name = "findPlayerBySharedSecret_meter",
+        reusable = true,
+        tags = "label=playerCredentialsResource")
+    @Traced
+    public void findPlayerBySharedSecret(@Suspended AsyncResponse response, PlayerCredentials credentials) {
+        executor.time(response, PlayerCredentialsResource.class, "findPlayerBySharedSecret_timer", "playerCredentialsResource");
+        Claims claims = (Claims) httpRequest.getAttribute("player.claims");
+        executor.submit(response, () -> findPlayer(claims, credentials));
+    }
+
+    PlayerResponse findPlayer(Claims claims, PlayerCredentials credentials) {
+        // only other services may do this
+        if ( claims == null || !"server".equals(claims.getAudience()) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.FORBIDDEN,
+                    "Unable to look up shared secret",
+                    "Invalid token type " + (claims == null ? null : claims.getAudience()));
+        }
+
+        KeyOwner owner = keyIndex.find(credentials == null ? null : credentials.getSharedSecret());
+        if ( owner == null ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.NOT_FOUND,
+                    "Unknown shared secret",
+                    "No player has the given shared secret");
+        }
+
+        PlayerResponse player = new PlayerResponse();
+        player.setId(owner.getId());
+        player.setName(owner.getName());
+        return player;
+    }
+}
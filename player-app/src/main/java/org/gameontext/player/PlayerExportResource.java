@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.eclipse.microprofile.metrics.annotation.Counted;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerExporter;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.entity.ErrorResponse;
+
+import io.jsonwebtoken.Claims;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * Dumps of the player database, for backups and analytics.
+ */
+@Path("/export")
+@Api( tags = {"players"})
+public class PlayerExportResource {
+    /** Newline delimited JSON: one player per line */
+    static final String NDJSON = "application/x-ndjson";
+
+    /** Upper bound on the number of id ranges read in parallel */
+    static final int MAX_RANGES = 64;
+
+    @Context
+    HttpServletRequest httpRequest;
+
+    @Inject
+    protected PlayerExporter exporter;
+
+    @Inject
+    protected PlayerIoExecutor executor;
+
+    /**
+     * GET /players/v1/export
+     */
+    @GET
+    @Produces(NDJSON)
+    @ApiOperation(value = "Export all players",
+        notes = "Only available to other services (server tokens). Writes every player as one line of JSON, "
+              + "in no particular order. Ranges of player ids are read in parallel: pass ranges to choose how many "
+              + "(default: the number of export threads). A response that ends early is incomplete. "
+              + "API keys are only included with credentials=true.")
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL),
+            @ApiResponse(code = HttpServletResponse.SC_FORBIDDEN, message = Messages.FORBIDDEN + "export players", response = ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_SERVICE_UNAVAILABLE, message = "An export is already running", response = ErrorResponse.class)
+    })
+    @Counted(name = "exportPlayers_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerExportResource")
+    public void exportPlayers(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "number of id ranges to read in parallel", required = false) @QueryParam("ranges") Integer ranges,
+            @ApiParam(value = "include API keys", required = false) @QueryParam("credentials") @DefaultValue("false") boolean credentials) {
+        executor.time(response, PlayerExportResource.class, "exportPlayers_timer", "playerExportResource");
+        Claims claims = (Claims) httpRequest.getAttribute("player.claims");
+
+        // the body may never be written: the request can time out while the
+        // ranges are planned, or the client can go away. Free the slot once
+        // the response is done, however it ended.
+        AtomicReference<PlayerExporter.Slot> slot = new AtomicReference<>();
+        response.register((CompletionCallback) failure -> release(slot));
+        executor.submit(response, () -> export(claims, ranges, credentials, response, slot));
+    }
+
+    private static void release(AtomicReference<PlayerExporter.Slot> slot) {
+        PlayerExporter.Slot taken = slot.get();
+        if ( taken != null ) {
+            taken.release();
+        }
+    }
+
+    Response export(Claims claims, Integer ranges, boolean credentials,
+            AsyncResponse response, AtomicReference<PlayerExporter.Slot> slot) {
+        // we don't want to allow this method to be invoked by a user.
+        if ( claims == null || !"server".equals(claims.getAudience()) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.FORBIDDEN,
+                    "Unable to export players",
+                    "Invalid token type " + (claims == null ? null : claims.getAudience()));
+        }
+
+        int count = ranges == null ? exporter.getThreads() : Math.min(Math.max(ranges, 1), MAX_RANGES);
+
+        slot.set(exporter.reserve());
+        if ( response.isDone() ) {
+            // timed out already: the completion callback may have run
+            release(slot);
+            return null;
+        }
+
+        List<PlayerExporter.Range> split;
+        try {
+            // before responding, so errors still set the status
+            split = exporter.split(count);
+        } catch (RuntimeException e) {
+            release(slot);
+            throw e;
+        }
+
+        StreamingOutput body = out -> {
+            try {
+                exporter.export(split, credentials, out);
+            } finally {
+                release(slot);
+            }
+        };
+        return Response.ok(body, NDJSON).build();
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.annotation.Counted;
+import org.eclipse.microprofile.metrics.annotation.Timed;
+import org.gameontext.player.Kafka.PlayerEvent;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerImporter;
+import org.gameontext.player.entity.ErrorResponse;
+import org.gameontext.player.entity.PlayerImportResult;
+
+import io.jsonwebtoken.Claims;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * Loads of many players, e.g. to restore an export or seed a new deployment.
+ */
+@Path("/import")
+@Api( tags = {"players"})
+public class PlayerImportResource {
+
+    @Context
+    HttpServletRequest httpRequest;
+
+    @Inject
+    protected PlayerImporter importer;
+
+    @Inject
+    protected Kafka kafka;
+
+    /**
+     * POST /players/v1/import
+     */
+    @POST
+    @Consumes({MediaType.APPLICATION_JSON, PlayerExportResource.NDJSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Create many players at once",
+        notes = "Only available to other services (server tokens). Pass a JSON array of players, or newline delimited "
+              + "JSON (one player per line, as written by the export). Players are created with new API keys; "
+              + "revisions, locations and API keys in the request are ignored. Returns the outcome of each player: "
+              + "created, conflict (the player already exists) or invalid. A CREATE event is published for each "
+              + "player that was created.",
+        response = PlayerImportResult.class,
+        responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response = PlayerImportResult.class),
+            @ApiResponse(code = HttpServletResponse.SC_FORBIDDEN, message = Messages.FORBIDDEN + "import players", response = ErrorResponse.class)
+    })
+    @Timed(name = "importPlayers_timer",
+        reusable = true,
+        tags = "label=playerImportResource")
+    @Counted(name = "importPlayers_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerImportResource")
+    public List<PlayerImportResult> importPlayers(InputStream players) throws IOException {
+        Claims claims = (Claims) httpRequest.getAttribute("player.claims");
+
+        // we don't want to allow this method to be invoked by a user.
+        if ( claims == null || !"server".equals(claims.getAudience()) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.FORBIDDEN,
+                    "Unable to import players",
+                    "Invalid token type " + (claims == null ? null : claims.getAudience()));
+        }
+
+        // NOTE: not on the I/O executor: a large import outlives its timeout
+        List<PlayerImportResult> results = importer.importPlayers(players);
+        for (PlayerImportResult result : results) {
+            if ( result.isCreated() ) {
+                kafka.publishPlayerEvent(PlayerEvent.CREATE, result.getPlayer());
+            }
+        }
+        return results;
+    }
+}
@@ -15,26 +15,52 @@
  *******************************************************************************/
 package org.gameontext.player;
 
-import java.time.temporal.ChronoUnit;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.StreamingViewResult;
 import org.ektorp.ViewQuery;
+import org.gameontext.player.Kafka.PlayerEvent;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerFallbacks;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerLocationStore;
+import org.gameontext.player.entity.BulkMoveRequest;
 import org.gameontext.player.entity.ErrorResponse;
 import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerMove;
+import org.gameontext.player.entity.PlayerMoveResult;
+import org.gameontext.player.utils.JsonOutput;
+import org.gameontext.player.utils.LastGood;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.jsonwebtoken.Claims;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -45,9 +71,6 @@ import io.swagger.annotations.ApiResponses;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Counted;
-import org.eclipse.microprofile.faulttolerance.Fallback;
-import org.eclipse.microprofile.faulttolerance.Retry;
-import org.eclipse.microprofile.faulttolerance.Timeout;
 /**
  * The Player location service, where we get to say where the players are.
  *
@@ -55,10 +78,27 @@ import org.eclipse.microprofile.faulttolerance.Timeout;
 @Path("/locations")
 @Api( tags = {"players"})
 public class PlayerLocationsResource {
+    /** Upper bound on the number of explicit moves in one bulk move */
+    static final int MAX_MOVES = 1000;
+
+    /** Upper bound on the number of rooms that can be counted by name at once */
+    static final int MAX_ROOMS = 100;
 
     @Inject
     protected CouchDbConnector db;
 
+    @Inject
+    protected PlayerLocationStore locationStore;
+
+    @Inject
+    protected PlayerIoExecutor executor;
+
+    @Inject
+    protected PlayerFallbacks fallbacks;
+
+    @Inject
+    Kafka kafka;
+
     @Context
     HttpServletRequest httpRequest;
     
@@ -73,10 +113,8 @@ public class PlayerLocationsResource {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL,
                     responseContainer = "Map"),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response=ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_SERVICE_UNAVAILABLE, message = "Database unavailable, and no earlier answer to fall back on", response=ErrorResponse.class),
     })
-    @Timed(name = "getPlayerLocationInformation_timer",
-        reusable = true,
-        tags = "label=playerLocationsResource")
     @Counted(name = "getPlayerLocationInformation_count",
         monotonic = true,
         reusable = true,
@@ -84,25 +122,76 @@ public class PlayerLocationsResource {
     @Metered(name = "getPlayerLocationInformation_meter",
         reusable = true,
         tags = "label=playerLocationsResource")
-    @Fallback(fallbackMethod = "getPlayerLocationInformationFallback")
-    @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
-    public Map<String,String> getPlayerLocationInformation(
+    public void getPlayerLocationInformation(
+            @Suspended AsyncResponse response,
             @ApiParam(value = "target player id", required = false) @QueryParam("playerId") String playerId,
-            @ApiParam(value = "target site id", required = false) @QueryParam("siteId") String siteId) throws IOException {
+            @ApiParam(value = "target site id", required = false) @QueryParam("siteId") String siteId) {
+        executor.time(response, PlayerLocationsResource.class, "getPlayerLocationInformation_timer", "playerLocationsResource");
+        executor.submit(response,
+                () -> playerId == null && siteId == null ? allPlayerLocations() : playerLocations(playerId, siteId),
+                () -> getPlayerLocationInformationFallback(playerId, siteId));
+    }
+
+    /**
+     * The location of every player, written as the rows arrive from the
+     * locationById view rather than collected into a map first.
+     */
+    Object allPlayerLocations() throws IOException {
+        StreamingViewResult rows;
+        try {
+            // opened here, so that errors are reported (or fall back) before
+            // the response starts
+            rows = locationStore.openLocations();
+        } catch (DocumentNotFoundException e) {
+            // design document was created before the locationById view was added
+            Log.log(Level.FINER, this, "locationById view not found, reading all players", e);
+            return playerLocations(null, null);
+        }
+
+        StreamingOutput body = out -> {
+            try (StreamingViewResult view = rows;
+                 JsonGenerator gen = JsonOutput.generator(out)) {
+                gen.writeStartObject();
+                locationStore.forEachLocation(view, gen::writeStringField, gen);
+                gen.writeEndObject();
+            }
+        };
+        return Response.ok(body, MediaType.APPLICATION_JSON).build();
+    }
+
+
+    Map<String,String> playerLocations(String playerId, String siteId) throws IOException {
+        Map<String,String> locations = findLocations(playerId, siteId);
+        fallbacks.putLocations(fallbackKey(playerId, siteId), locations);
+        return locations;
+    }
+
+    private Map<String,String> findLocations(String playerId, String siteId) throws IOException {
         
         Map<String,String> locations = new HashMap<String,String>();
         
         if(playerId!=null){
-            PlayerDbRecord p = db.get(PlayerDbRecord.class, playerId);
-            if(siteId==null || siteId.equals(p.getLocation()) ||
-                (siteId.equals(PlayerApplication.FIRST_ROOM) && p.getLocation()==null)
+            String location = locationStore.getLocation(playerId);
+            if(siteId==null || siteId.equals(location) ||
+                (siteId.equals(PlayerApplication.FIRST_ROOM) && location==null)
               ){
-                locations.put(p.getId(), p.getLocation()==null?PlayerApplication.FIRST_ROOM:p.getLocation());
+                locations.put(playerId, location==null?PlayerApplication.FIRST_ROOM:location);
             }
         }else{
+            if(siteId!=null){
+                try {
+                    // only the occupants of the room, rather than every player
+                    for (String id : locationStore.playersAt(siteId)) {
+                        locations.put(id, siteId);
+                    }
+                    return locations;
+                } catch (DocumentNotFoundException e) {
+                    // design document was created before the byLocation view was added
+                    Log.log(Level.FINER, this, "byLocation view not found, scanning all players", e);
+                }
+            }
             ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
-            List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
+            List<PlayerDbRecord> results = locationStore.current(db.queryView(all, PlayerDbRecord.class));
             results
                 .stream()
                 .filter( player -> siteId==null ||
@@ -115,11 +204,177 @@ public class PlayerLocationsResource {
         return locations;
     }
     
-    public Map<String,String> getPlayerLocationInformationFallback(
-            @ApiParam(value = "target player id", required = false) @QueryParam("playerId") String playerId,
-            @ApiParam(value = "target site id", required = false) @QueryParam("siteId") String siteId) throws IOException {
-        Map<String,String> locations = new HashMap<String,String>();
-        locations.put("null", "null");
-        return locations;
+    private static String fallbackKey(String playerId, String siteId) {
+        return playerId + "|" + siteId;
+    }
+
+    /**
+     * When the database is not answering: the last good answer to the same
+     * query or, for all players, the occupancy index, marked as stale.
+     * Otherwise 503, with a Retry-After header.
+     */
+    public Response getPlayerLocationInformationFallback(String playerId, String siteId) {
+        LastGood.Entry<Map<String,String>> last = fallbacks.getLocations(fallbackKey(playerId, siteId));
+        if ( last != null ) {
+            return fallbacks.stale(Response.ok(last.getValue(), MediaType.APPLICATION_JSON), last.getAge());
+        }
+        if ( playerId == null && siteId == null ) {
+            Map<String,String> indexed = locationStore.indexedLocations();
+            if ( indexed != null ) {
+                // kept up to date from the changes feed, until it stopped answering too
+                return fallbacks.stale(Response.ok(indexed, MediaType.APPLICATION_JSON), locationStore.getIndexAge());
+            }
+        }
+        return fallbacks.unavailable();
+    }
+
+    /**
+     * GET /players/v1/locations/counts
+     */
+    @GET
+    @Path("/counts")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Count the players in each room",
+        notes = "Returns a map of room id to number of players. Pass one or more room parameters to count only "
+              + "those rooms (rooms without players are included with 0). Players without a location are counted "
+              + "in the first room.",
+        responseContainer = "Map")
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, responseContainer = "Map"),
+            @ApiResponse(code = HttpServletResponse.SC_BAD_REQUEST, message = "Too many rooms requested", response = ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_SERVICE_UNAVAILABLE, message = "The player design document predates room counts", response = ErrorResponse.class)
+    })
+    @Counted(name = "getRoomCounts_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerLocationsResource")
+    @Metered(name = "getRoomCounts_meter",
+        reusable = true,
+        tags = "label=playerLocationsResource")
+    public void getRoomCounts(
+            @Suspended AsyncResponse response,
+            @ApiParam(value = "rooms to count", required = false) @QueryParam("room") List<String> rooms) {
+        executor.time(response, PlayerLocationsResource.class, "getRoomCounts_timer", "playerLocationsResource");
+        executor.submit(response, () -> roomCounts(rooms));
+    }
+
+    Map<String, Long> roomCounts(List<String> rooms) throws IOException {
+        if ( rooms != null && rooms.size() > MAX_ROOMS ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    "Too many rooms requested",
+                    "At most " + MAX_ROOMS + " rooms can be counted at once");
+        }
+        return locationStore.countPlayers(rooms);
+    }
+
+    /**
+     * POST /players/v1/locations/moves
+     */
+    @POST
+    @Path("/moves")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Move many players at once",
+        notes = "Only available to other services (server tokens). Pass fromLocation and toLocation to move "
+              + "every player in a room (e.g. a room that has been deleted) to another room, or a list of moves. "
+              + "Returns the outcome of each move: ok, conflict (the player was not where expected) or not_found. "
+              + "An UPDATE_LOCATION event is published for each player that was moved.",
+        response = PlayerMoveResult.class,
+        responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response = PlayerMoveResult.class),
+            @ApiResponse(code = HttpServletResponse.SC_BAD_REQUEST, message = "Invalid moves", response = ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_FORBIDDEN, message = Messages.FORBIDDEN + "move players", response = ErrorResponse.class)
+    })
+    @Timed(name = "movePlayers_timer",
+        reusable = true,
+        tags = "label=playerLocationsResource")
+    @Counted(name = "movePlayers_count",
+        monotonic = true,
+        reusable = true,
+        tags = "label=playerLocationsResource")
+    @Metered(name = "movePlayers_meter",
+        reusable = true,
+        tags = "label=playerLocationsResource")
+    public List<PlayerMoveResult> movePlayers(BulkMoveRequest request) {
+        Claims claims = (Claims) httpRequest.getAttribute("player.claims");
+        // NOTE: not on the I/O executor: evacuating a busy room can outlive
+        // its timeout, and the moves must not be cut off half way.
+        return bulkMove(claims, request);
+    }
+
+    List<PlayerMoveResult> bulkMove(Claims claims, BulkMoveRequest request) {
+        // we don't want to allow this method to be invoked by a user.
+        if ( claims == null || !"server".equals(claims.getAudience()) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.FORBIDDEN,
+                    "Unable to move players",
+                    "Invalid token type " + (claims == null ? null : claims.getAudience()));
+        }
+
+        List<PlayerMove> moves = request == null ? null : movesFor(request);
+        if ( moves == null ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    "Unable to move players",
+                    "Specify fromLocation and toLocation, or a list of moves");
+        }
+
+        // announced chunk by chunk, as the moves are written
+        return locationStore.moveAll(moves, (move, result) ->
+                kafka.publishPlayerEvent(PlayerEvent.UPDATE_LOCATION, result.getPlayer(), move.getOrigin()));
+    }
+
+    /**
+     * @return the moves to make, or null if the request is incomplete
+     */
+    private List<PlayerMove> movesFor(BulkMoveRequest request) {
+        List<PlayerMove> moves = new ArrayList<>();
+
+        if ( request.getFromLocation() != null ) {
+            if ( request.getToLocation() == null ) {
+                return null;
+            }
+            Set<String> occupants;
+            try {
+                occupants = locationStore.playersAt(request.getFromLocation());
+            } catch (DocumentNotFoundException e) {
+                // not the caller's 404: the design document predates the view
+                throw new IllegalStateException("byLocation view is missing from _design/players", e);
+            }
+            for (String id : occupants) {
+                moves.add(new PlayerMove(id, request.getFromLocation(), request.getToLocation(), request.getOrigin()));
+            }
+            return moves;
+        }
+
+        if ( request.getMoves() == null || request.getMoves().isEmpty() ) {
+            return null;
+        }
+        if ( request.getMoves().size() > MAX_MOVES ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    "Too many moves requested",
+                    "At most " + MAX_MOVES + " players can be moved at once");
+        }
+
+        Set<String> ids = new HashSet<>();
+        for (PlayerMove move : request.getMoves()) {
+            if ( move == null || move.getPlayerId() == null || move.getNewLocation() == null ) {
+                return null;
+            }
+            if ( !ids.add(move.getPlayerId()) ) {
+                throw new PlayerAccountModificationException(
+                        Response.Status.BAD_REQUEST,
+                        "Unable to move players",
+                        "Player " + move.getPlayerId() + " is moved more than once");
+            }
+            if ( move.getOrigin() == null ) {
+                move.setOrigin(request.getOrigin());
+            }
+            moves.add(move);
+        }
+        return moves;
     }
 }
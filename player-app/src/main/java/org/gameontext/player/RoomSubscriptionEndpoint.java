@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+import javax.enterprise.inject.spi.CDI;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+import org.gameontext.player.control.PlayerFilter;
+import org.gameontext.player.control.RoomSubscriptions;
+import org.gameontext.player.control.RoomSubscriptions.Subscriber;
+import org.gameontext.player.utils.JWT;
+import org.gameontext.player.utils.JWT.AuthenticationState;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.UnsupportedJwtException;
+
+/**
+ * WebSocket /players/v1/locations/subscribe
+ *
+ * Pushes {"type":"join"|"leave","siteId":..,"playerId":..} as players enter and
+ * leave the subscribed rooms. Rooms are given with siteId query parameters
+ * when connecting, and can be changed afterwards by sending
+ * {"subscribe":["siteId",..]} or {"unsubscribe":["siteId",..]}. Subscribing
+ * to more than PLAYER_SUBSCRIBER_ROOMS rooms closes the connection.
+ *
+ * Only for server (e.g. mediator) tokens, passed in the jwt query parameter:
+ * not all WebSocket clients can set headers.
+ */
+@ServerEndpoint("/v1/locations/subscribe")
+public class RoomSubscriptionEndpoint {
+
+    private static final String SUBSCRIBER = "player.subscription";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private RoomSubscriptions subscriptions() {
+        return CDI.current().select(RoomSubscriptions.class).get();
+    }
+
+    @OnOpen
+    public void onOpen(Session session) throws IOException {
+        if ( !isServer(session.getRequestParameterMap().get("jwt")) ) {
+            session.close(new CloseReason(CloseCodes.VIOLATED_POLICY, "Server token required"));
+            return;
+        }
+
+        Subscriber subscriber = subscriptions().connect(new RoomSubscriptions.Sink() {
+            @Override
+            public void send(String text, Runnable done) {
+                session.getAsyncRemote().sendText(text, r -> done.run());
+            }
+
+            @Override
+            public void close(String reason) {
+                try {
+                    session.close(new CloseReason(CloseCodes.TRY_AGAIN_LATER, reason));
+                } catch (IOException e) {
+                    Log.log(Level.FINEST, this, "Error closing subscriber session", e);
+                }
+            }
+        });
+        if ( subscriber == null ) {
+            session.close(new CloseReason(CloseCodes.TRY_AGAIN_LATER, "Too many subscribers"));
+            return;
+        }
+        session.getUserProperties().put(SUBSCRIBER, subscriber);
+
+        List<String> rooms = session.getRequestParameterMap().get("siteId");
+        if ( rooms != null && !subscriptions().subscribe(subscriber, rooms) ) {
+            tooManyRooms(session);
+        }
+    }
+
+    private boolean isServer(List<String> tokens) {
+        if ( tokens == null || tokens.size() != 1 ) {
+            return false;
+        }
+        try {
+            JWT jwt = new JWT(PlayerFilter.getSigningCert(), tokens.get(0));
+            return jwt.getState() == AuthenticationState.PASSED
+                    && "server".equals(jwt.getClaims().getAudience());
+        } catch (MalformedJwtException | UnsupportedJwtException e) {
+            Log.log(Level.FINE, this, "Room subscriber token rejected: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @OnMessage
+    public void onMessage(Session session, String message) throws IOException {
+        Subscriber subscriber = (Subscriber) session.getUserProperties().get(SUBSCRIBER);
+        if ( subscriber == null ) {
+            return;
+        }
+        JsonNode request;
+        try {
+            request = mapper.readTree(message);
+        } catch (IOException e) {
+            session.close(new CloseReason(CloseCodes.CANNOT_ACCEPT, "Messages must be JSON"));
+            return;
+        }
+        if ( !subscriptions().subscribe(subscriber, rooms(request.get("subscribe"))) ) {
+            tooManyRooms(session);
+            return;
+        }
+        subscriptions().unsubscribe(subscriber, rooms(request.get("unsubscribe")));
+    }
+
+    private void tooManyRooms(Session session) throws IOException {
+        session.close(new CloseReason(CloseCodes.VIOLATED_POLICY, "Subscribed to too many rooms"));
+    }
+
+    private List<String> rooms(JsonNode node) {
+        if ( node == null || !node.isArray() ) {
+            return Collections.emptyList();
+        }
+        List<String> rooms = new ArrayList<>();
+        for (JsonNode room : node) {
+            if ( room.isTextual() ) {
+                rooms.add(room.asText());
+            }
+        }
+        return rooms;
+    }
+
+    @OnClose
+    public void onClose(Session session) {
+        Object subscriber = session.getUserProperties().remove(SUBSCRIBER);
+        if ( subscriber != null ) {
+            subscriptions().unsubscribe((Subscriber) subscriber);
+        }
+    }
+
+    @OnError
+    public void onError(Session session, Throwable t) {
+        Log.log(Level.FINE, this, "Room subscriber error: " + t.getMessage());
+        onClose(session);
+    }
+}
@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.ChangeStamps;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Size-bounded, read-through cache of player records.
+ *
+ * Entries are kept coherent with the database by the changes feed: a change
+ * with a newer revision replaces the cached record, a deletion evicts it.
+ * Writes made by this instance should be passed to {@link #put(PlayerDbRecord)}
+ * (or {@link #evict(String)}) once the database has accepted them.
+ *
+ * Records returned from the cache are shared: callers must not modify them.
+ */
+@ApplicationScoped
+public class PlayerCache {
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerChangesFeed changesFeed;
+
+    private final int maxSize = Env.getInt("PLAYER_CACHE_SIZE", 1000);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /** Changes seen on the feed, by id, see {@link #get(String)} */
+    private final ChangeStamps changes = new ChangeStamps(Env.getInt("PLAYER_CACHE_CHANGES", 10000));
+
+    /** Access-ordered, so the eldest entry is the least recently used */
+    private final Map<String, PlayerDbRecord> records = new LinkedHashMap<String, PlayerDbRecord>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PlayerDbRecord> eldest) {
+            if ( size() > maxSize ) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        if ( maxSize > 0 ) {
+            Log.log(Level.INFO, this, "Player cache enabled, max size {0}", maxSize);
+            changesFeed.addListener(this::onChange);
+        }
+    }
+
+    /**
+     * Return the player record with the given id, fetching it from the
+     * database if it is not cached.
+     * @param id player id
+     * @return shared player record (do not modify)
+     * @throws org.ektorp.DocumentNotFoundException if the player does not exist
+     */
+    public PlayerDbRecord get(String id) {
+        PlayerDbRecord record = peek(id);
+        if ( record != null ) {
+            hits.increment();
+            return record;
+        }
+        misses.increment();
+
+        // If a change to this player arrives while we're fetching, the record
+        // we read may already be out of date: return it, but don't cache it.
+        long before = changes.now();
+        record = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
+
+        if ( maxSize > 0 ) {
+            synchronized (records) {
+                if ( !changes.changedSince(id, before) ) {
+                    records.putIfAbsent(id, record);
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Return the player records for the given ids. Ids that are not cached are
+     * fetched from the database with a single _all_docs request.
+     * @param ids player ids
+     * @return map of id to shared player record (do not modify). Unknown ids are not included.
+     */
+    public Map<String, PlayerDbRecord> getAll(Collection<String> ids) {
+        Map<String, PlayerDbRecord> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String id : ids) {
+            PlayerDbRecord record = peek(id);
+            if ( record != null ) {
+                hits.increment();
+                result.put(id, record);
+            } else if ( !missing.contains(id) ) {
+                missing.add(id);
+            }
+        }
+
+        if ( missing.isEmpty() ) {
+            return result;
+        }
+        misses.add(missing.size());
+
+        long before = changes.now();
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(missing);
+        query.setIgnoreNotFound(true);
+
+        for (PlayerDbRecord record : db.queryView(query, PlayerDbRecord.class)) {
+            // skip deleted documents, and anything that isn't a player
+            if ( record != null && record.getName() != null ) {
+                result.put(record.getId(), record);
+            }
+        }
+
+        if ( maxSize > 0 ) {
+            synchronized (records) {
+                for (String id : missing) {
+                    PlayerDbRecord record = result.get(id);
+                    if ( record != null && !changes.changedSince(id, before) ) {
+                        records.putIfAbsent(id, record);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the location of the given player. If the player is not cached,
+     * the location is read from the locationById view rather than fetching
+     * (and caching) the whole player document.
+     * @param id player id
+     * @return the player location, or null if the player has never had one
+     * @throws org.ektorp.DocumentNotFoundException if the player does not exist
+     */
+    public String getLocation(String id) {
+        PlayerDbRecord record = peek(id);
+        if ( record != null ) {
+            hits.increment();
+            return record.getLocation();
+        }
+
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("locationById")
+                .key(id).includeDocs(false);
+        List<ViewResult.Row> rows;
+        try {
+            rows = db.queryView(query).getRows();
+        } catch (DocumentNotFoundException e) {
+            // design document was created before the view was added
+            Log.log(Level.FINER, this, "locationById view not found, reading player document", e);
+            return get(id).getLocation();
+        }
+
+        if ( rows.isEmpty() ) {
+            throw new DocumentNotFoundException(id);
+        }
+        JsonNode value = rows.get(0).getValueAsNode();
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    /**
+     * @param id player id
+     * @return the cached record, or null: never goes to the database.
+     */
+    public PlayerDbRecord peek(String id) {
+        synchronized (records) {
+            return records.get(id);
+        }
+    }
+
+    /**
+     * Cache a record that has just been written by this instance.
+     * Ignored if a newer revision is already cached.
+     */
+    public void put(PlayerDbRecord record) {
+        if ( maxSize <= 0 || record == null || record.getId() == null ) {
+            return;
+        }
+        synchronized (records) {
+            PlayerDbRecord current = records.get(record.getId());
+            if ( current == null || revision(record.getRev()) >= revision(current.getRev()) ) {
+                records.put(record.getId(), record);
+            }
+        }
+    }
+
+    public void evict(String id) {
+        synchronized (records) {
+            records.remove(id);
+        }
+    }
+
+    void onChange(DocumentChange change, PlayerDbRecord record) {
+        changes.changed(change.getId());
+
+        synchronized (records) {
+            PlayerDbRecord current = records.get(change.getId());
+            if ( current == null ) {
+                return;
+            }
+
+            if ( record == null || record.getName() == null ) {
+                // deleted (or no longer something we should serve)
+                records.remove(change.getId());
+                invalidations.increment();
+            } else if ( revision(record.getRev()) > revision(current.getRev()) ) {
+                records.put(change.getId(), record);
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * @param rev CouchDB revision, e.g. 3-917fa2381192822767f010b95b45325b
+     * @return the numeric generation of the revision (3), or 0 if unknown
+     */
+    static long revision(String rev) {
+        if ( rev == null ) {
+            return 0;
+        }
+        int dash = rev.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? rev : rev.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Gauge(name = "playerCache_hits",
+        unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Gauge(name = "playerCache_misses",
+        unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Gauge(name = "playerCache_evictions",
+        unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Gauge(name = "playerCache_invalidations",
+        unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Gauge(name = "playerCache_size",
+        unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getSize() {
+        synchronized (records) {
+            return records.size();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Follows the playerdb _changes feed (long-poll) on a dedicated thread, and
+ * hands each change to the registered listeners. Used to keep in-process
+ * copies of player data coherent with writes made by other instances.
+ *
+ * The thread is started when the first listener is registered.
+ */
+@ApplicationScoped
+public class PlayerChangesFeed implements Runnable {
+
+    /** Long-poll timeout: must stay below the http client socket timeout (10s) */
+    static final int POLL_TIMEOUT = 5000;
+    static final int BATCH_SIZE = 200;
+    static final long MAX_BACKOFF = 30000;
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param change the change, as reported by CouchDB
+         * @param record the changed document, or null if it was deleted
+         *          (or could not be read)
+         */
+        void onChange(DocumentChange change, PlayerDbRecord record);
+    }
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    protected final ObjectMapper mapper = new ObjectMapper();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private Thread thread;
+    private volatile boolean keepGoing = true;
+    private volatile String since = null;
+    private volatile long lastRead = 0;
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+
+        if ( thread == null && threadFactory != null ) {
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the last sequence processed, or null if the feed has not started
+     */
+    public String getLastSequence() {
+        return since;
+    }
+
+    /**
+     * @return when the feed was last read successfully (ms since the epoch),
+     *          or 0 if it has not been read yet
+     */
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    @Override
+    public void run() {
+        Log.log(Level.FINEST, this, "CHANGES FEED OPEN");
+        boolean interrupted = false;
+        long backoff = 1000;
+
+        while (keepGoing) {
+            try {
+                if ( since == null ) {
+                    // only interested in changes made from here on
+                    since = db.getDbInfo().getUpdateSeqAsString();
+                }
+
+                ChangesCommand cmd = new ChangesCommand.Builder()
+                        .since(since)
+                        .includeDocs(true)
+                        .limit(BATCH_SIZE)
+                        .param("feed", "longpoll")
+                        .param("timeout", Integer.toString(POLL_TIMEOUT))
+                        .build();
+
+                for (DocumentChange change : db.changes(cmd)) {
+                    dispatch(change);
+                    since = change.getStringSequence();
+                }
+                lastRead = System.currentTimeMillis();
+                backoff = 1000;
+            } catch (RuntimeException e) {
+                Log.log(Level.WARNING, this, "Error reading changes feed, retrying in " + backoff + "ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+
+        Log.log(Level.FINEST, this, "CHANGES FEED CLOSED");
+
+        // reset interrupted flag when thread asked to stop
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void dispatch(DocumentChange change) {
+        PlayerDbRecord record = null;
+        if ( !change.isDeleted() ) {
+            record = toRecord(change.getDocAsNode());
+        }
+
+        for (Listener listener : listeners) {
+            try {
+                listener.onChange(change, record);
+            } catch (RuntimeException e) {
+                Log.log(Level.SEVERE, this, "Unexpected error processing change for " + change.getId(), e);
+            }
+        }
+    }
+
+    private PlayerDbRecord toRecord(JsonNode doc) {
+        if ( doc == null ) {
+            return null;
+        }
+        try {
+            return mapper.treeToValue(doc, PlayerDbRecord.class);
+        } catch (JsonProcessingException e) {
+            Log.log(Level.FINER, this, "Ignoring unreadable document in changes feed", e);
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        keepGoing = false;
+
+        if ( thread != null && thread.isAlive() ) {
+            Log.log(Level.FINEST, this, "Stopping changes feed thread");
+            thread.interrupt();
+        }
+    }
+}
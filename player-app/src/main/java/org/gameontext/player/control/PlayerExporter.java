@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerFields;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.JsonOutput;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes every player as newline delimited JSON.
+ *
+ * The id space is split into ranges of about the same number of players,
+ * which are read in parallel (one streaming query each). Ranges hand
+ * chunks of PLAYER_LOCATION_BULK_CHUNK players, already serialized, to the
+ * writer through a bounded queue: memory use depends on the number of
+ * ranges and the queue size, not on the number of players. Players from
+ * different ranges are interleaved.
+ */
+@ApplicationScoped
+public class PlayerExporter {
+
+    /** A range of player ids: from (inclusive) to (exclusive), null for unbounded */
+    public static class Range {
+        final String from;
+        final String to;
+
+        Range(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * An export slot, taken by {@link PlayerExporter#reserve()}. Releasing
+     * it more than once is harmless, so it can be released both when the
+     * export ends and when the response completes (however it completes).
+     */
+    public class Slot {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void release() {
+            if ( released.compareAndSet(false, true) ) {
+                running.release();
+            }
+        }
+    }
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerLocationStore locations;
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    final int threads = Math.max(1, Env.getInt("PLAYER_EXPORT_THREADS", Runtime.getRuntime().availableProcessors()));
+    private final int bufferChunks = Math.max(1, Env.getInt("PLAYER_EXPORT_BUFFER", 16));
+    private final int chunkSize = Math.max(1, Env.getInt("PLAYER_LOCATION_BULK_CHUNK", 100));
+    final Semaphore running = new Semaphore(Math.max(1, Env.getInt("PLAYER_EXPORT_MAX", 1)));
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final LongAdder exported = new LongAdder();
+
+    private ThreadPoolExecutor pool;
+
+    @PostConstruct
+    public void init() {
+        ThreadFactory factory = threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if ( pool != null ) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Split the all view into ranges holding about the same number of players.
+     * Each boundary is found by skipping from the previous one, so the view
+     * is walked once in all, whatever the number of ranges.
+     * @param count number of ranges wanted
+     */
+    public List<Range> split(int count) {
+        ViewQuery total = new ViewQuery().designDocId("_design/players").viewName("all").limit(0);
+        int rows = db.queryView(total).getTotalRows();
+        int step = rows / Math.max(1, count);
+
+        List<Range> ranges = new ArrayList<>();
+        String from = null;
+        for (int i = 1; i < count && step > 0; i++) {
+            ViewQuery at = new ViewQuery().designDocId("_design/players").viewName("all")
+                    .skip(step).limit(1);
+            if ( from != null ) {
+                at.startKey(from);
+            }
+            List<ViewResult.Row> found = db.queryView(at).getRows();
+            if ( found.isEmpty() ) {
+                break;
+            }
+            String boundary = found.get(0).getKey();
+            if ( from == null || boundary.compareTo(from) > 0 ) {
+                ranges.add(new Range(from, boundary));
+                from = boundary;
+            }
+        }
+        ranges.add(new Range(from, null));
+        return ranges;
+    }
+
+    /**
+     * Reserve one of the PLAYER_EXPORT_MAX export slots.
+     * @return the slot, to be released once the response is done
+     * @throws PlayerAccountModificationException 503 if all are in use
+     */
+    public Slot reserve() {
+        if ( !running.tryAcquire() ) {
+            throw new PlayerAccountModificationException(Response.Status.SERVICE_UNAVAILABLE,
+                    "Export already running", "Try again once the running export has finished");
+        }
+        return new Slot();
+    }
+
+    /**
+     * Read the ranges in parallel, and write each player as one line of JSON.
+     * @param ranges from {@link #split(int)}
+     * @param withCredentials true to include API keys
+     * @param out where to write
+     * @throws IOException if writing fails, or reading any range fails (the output is then incomplete)
+     */
+    public void export(List<Range> ranges, boolean withCredentials, OutputStream out) throws IOException {
+        BlockingQueue<byte[]> buffer = new ArrayBlockingQueue<>(bufferChunks);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<Future<?>> tasks = new ArrayList<>();
+        // an empty chunk marks the end of a range
+        byte[] done = new byte[0];
+
+        try {
+            for (Range range : ranges) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        scan(range, withCredentials, chunk -> put(buffer, chunk, cancelled));
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        put(buffer, done, cancelled);
+                    }
+                }));
+            }
+
+            int remaining = ranges.size();
+            while ( remaining > 0 && failure.get() == null ) {
+                byte[] chunk = buffer.take();
+                if ( chunk == done ) {
+                    remaining--;
+                } else {
+                    out.write(chunk);
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } finally {
+            // stops the ranges still being read, e.g. when the client went away
+            cancelled.set(true);
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        if ( failure.get() != null ) {
+            throw new IOException("Export failed, output is incomplete", failure.get());
+        }
+    }
+
+    @FunctionalInterface
+    interface ChunkConsumer {
+        void accept(byte[] chunk) throws InterruptedException;
+    }
+
+    /**
+     * Wait for room in the buffer, unless the export has been cancelled.
+     */
+    private static void put(BlockingQueue<byte[]> buffer, byte[] chunk, AtomicBoolean cancelled) {
+        try {
+            while ( !cancelled.get() ) {
+                if ( buffer.offer(chunk, 100, TimeUnit.MILLISECONDS) ) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void scan(Range range, boolean withCredentials, ChunkConsumer consumer) throws Exception {
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("all").includeDocs(true);
+        if ( range.from != null ) {
+            query.startKey(range.from);
+        }
+        if ( range.to != null ) {
+            query.endKey(range.to).inclusiveEnd(false);
+        }
+
+        List<PlayerDbRecord> chunk = new ArrayList<>(chunkSize);
+        try (StreamingViewResult rows = db.queryForStreamingView(query)) {
+            for (ViewResult.Row row : rows) {
+                JsonNode doc = row.getDocAsNode();
+                if ( doc == null || doc.isNull() ) {
+                    continue;
+                }
+                chunk.add(mapper.treeToValue(doc, PlayerDbRecord.class));
+                if ( chunk.size() >= chunkSize ) {
+                    consumer.accept(serialize(chunk, withCredentials));
+                }
+                if ( Thread.currentThread().isInterrupted() ) {
+                    throw new InterruptedException("Export cancelled");
+                }
+            }
+        }
+        if ( !chunk.isEmpty() ) {
+            consumer.accept(serialize(chunk, withCredentials));
+        }
+    }
+
+    private byte[] serialize(List<PlayerDbRecord> chunk, boolean withCredentials) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.size() * 256);
+        try (JsonGenerator gen = JsonOutput.generator(bytes)) {
+            for (PlayerDbRecord record : locations.current(chunk)) {
+                PlayerFields.ALL.write(gen, record, withCredentials);
+                gen.writeRaw('\n');
+            }
+        }
+        exported.add(chunk.size());
+        chunk.clear();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return number of ranges read at once (PLAYER_EXPORT_THREADS)
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    @Gauge(name = "playerExport_players",
+        unit = MetricUnits.NONE,
+        tags = "label=playerExport")
+    public long getExported() {
+        return exported.sum();
+    }
+}
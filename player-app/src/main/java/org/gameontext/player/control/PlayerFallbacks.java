@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.entity.ErrorResponse;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.LastGood;
+
+/**
+ * What to answer when the database is not: the last good answer to the same
+ * request, marked as stale, or 503 with a Retry-After header so that clients
+ * back off instead of retrying straight away.
+ */
+@ApplicationScoped
+public class PlayerFallbacks {
+
+    /** RFC 7234 warning for responses served stale */
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+    private final int maxEntries = Env.getInt("PLAYER_LAST_GOOD_ENTRIES", 100);
+    private final int retryAfter = Env.getInt("PLAYER_RETRY_AFTER_S", 30);
+
+    /** players looked up by id: request key -> player records (id -> record, null if unknown) */
+    private final LastGood<String, Map<String, PlayerDbRecord>> players = new LastGood<>(maxEntries);
+
+    /** /locations queries: request key -> player id -> room */
+    private final LastGood<String, Map<String, String>> locations = new LastGood<>(maxEntries);
+
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+
+    public void putPlayers(String key, Map<String, PlayerDbRecord> records) {
+        players.put(key, records);
+    }
+
+    public LastGood.Entry<Map<String, PlayerDbRecord>> getPlayers(String key) {
+        return players.get(key);
+    }
+
+    public void putLocations(String key, Map<String, String> result) {
+        locations.put(key, result);
+    }
+
+    public LastGood.Entry<Map<String, String>> getLocations(String key) {
+        return locations.get(key);
+    }
+
+    /**
+     * @param builder response to mark as stale
+     * @param age seconds since the data was current
+     */
+    public Response stale(Response.ResponseBuilder builder, long age) {
+        stale.increment();
+        return builder.header("Warning", STALE_WARNING)
+                .header("Age", age)
+                .build();
+    }
+
+    /**
+     * @return 503, with a Retry-After header
+     */
+    public Response unavailable() {
+        unavailable.increment();
+        ErrorResponse error = new ErrorResponse();
+        error.setStatus(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+        error.setMessage("Player data is unavailable");
+        error.setMore_info("Try again in " + retryAfter + " seconds");
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .type(MediaType.APPLICATION_JSON)
+                .header("Retry-After", retryAfter)
+                .entity(error)
+                .build();
+    }
+
+    @Gauge(name = "playerFallbacks_stale",
+        unit = MetricUnits.NONE,
+        tags = "label=playerFallbacks")
+    public long getStale() {
+        return stale.sum();
+    }
+
+    @Gauge(name = "playerFallbacks_unavailable",
+        unit = MetricUnits.NONE,
+        tags = "label=playerFallbacks")
+    public long getUnavailable() {
+        return unavailable.sum();
+    }
+}
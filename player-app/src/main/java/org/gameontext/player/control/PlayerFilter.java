@@ -71,6 +71,13 @@ public class PlayerFilter implements Filter {
         }
     }
 
+    /**
+     * @return the certificate used to check JWT signatures, once the filter has been initialized
+     */
+    public static Certificate getSigningCert() {
+        return signingCert;
+    }
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         try {
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.gameontext.player.entity.PlayerArgument;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerImportResult;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.SharedSecretGenerator;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Creates many players at once: players are read from the request as they
+ * arrive, and written with _bulk_docs in chunks of PLAYER_IMPORT_CHUNK,
+ * each with a new API key.
+ */
+@ApplicationScoped
+public class PlayerImporter {
+
+    /** Upper bound on the number of players in one import */
+    static final int MAX_PLAYERS = 10000;
+
+    @Inject
+    protected CouchDbConnector db;
+
+    int chunkSize = Math.max(1, Env.getInt("PLAYER_IMPORT_CHUNK", 100));
+
+    private final ObjectReader reader = new ObjectMapper().readerFor(PlayerArgument.class);
+
+    private final LongAdder created = new LongAdder();
+
+    /**
+     * @param in a JSON array of players, or players one after the other
+     *          (e.g. newline delimited)
+     * @return the outcome for each player, in the order they were read.
+     *          Unreadable input, or more than MAX_PLAYERS players, ends the
+     *          import, with an invalid result.
+     */
+    public List<PlayerImportResult> importPlayers(InputStream in) throws IOException {
+        List<PlayerImportResult> results = new ArrayList<>();
+        List<PlayerImportResult> chunk = new ArrayList<>(chunkSize);
+        Set<String> seen = new HashSet<>();
+        int count = 0;
+
+        try (MappingIterator<PlayerArgument> players = reader.readValues(in)) {
+            while ( players.hasNextValue() ) {
+                if ( ++count > MAX_PLAYERS ) {
+                    // the rest is not read
+                    results.add(new PlayerImportResult(null, PlayerImportResult.INVALID,
+                            "Too many players: at most " + MAX_PLAYERS + " players can be imported at once"));
+                    break;
+                }
+                PlayerArgument player = players.nextValue();
+
+                String problem = validate(player);
+                if ( problem == null && !seen.add(player.getId()) ) {
+                    problem = "Duplicate id";
+                }
+                if ( problem != null ) {
+                    results.add(new PlayerImportResult(player.getId(), PlayerImportResult.INVALID, problem));
+                    continue;
+                }
+
+                PlayerDbRecord record = new PlayerDbRecord();
+                record.update(player);
+                record.setRev(null);
+                record.setApiKey(SharedSecretGenerator.generateApiKey());
+
+                // keep its place, the outcome is known once the chunk is written
+                PlayerImportResult result = new PlayerImportResult(player.getId(), null, null);
+                result.setPlayer(record);
+                results.add(result);
+                chunk.add(result);
+                if ( chunk.size() >= chunkSize ) {
+                    write(chunk);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // where the next player starts is anyone's guess
+            results.add(new PlayerImportResult(null, PlayerImportResult.INVALID,
+                    "Unreadable player: " + e.getOriginalMessage()));
+        }
+        write(chunk);
+        return results;
+    }
+
+    /**
+     * @return what is wrong with the player, or null
+     */
+    static String validate(PlayerArgument player) {
+        String id = player.getId();
+        if ( id == null || id.trim().isEmpty() ) {
+            return "An id is required";
+        }
+        if ( id.startsWith("_") || id.startsWith(PlayerLocationRecord.ID_PREFIX) ) {
+            return "Reserved id";
+        }
+        if ( player.getName() == null || player.getName().trim().isEmpty() ) {
+            return "A name is required";
+        }
+        return null;
+    }
+
+    private void write(List<PlayerImportResult> chunk) {
+        if ( chunk.isEmpty() ) {
+            return;
+        }
+        List<PlayerDbRecord> records = new ArrayList<>(chunk.size());
+        for (PlayerImportResult result : chunk) {
+            records.add(result.getPlayer());
+        }
+        Map<String, DocumentOperationResult> errors = new HashMap<>();
+        for (DocumentOperationResult error : db.executeBulk(records)) {
+            errors.put(error.getId(), error);
+        }
+
+        for (PlayerImportResult result : chunk) {
+            DocumentOperationResult error = errors.get(result.getPlayerId());
+            if ( error == null ) {
+                result.setStatus(PlayerImportResult.CREATED);
+                created.increment();
+                continue;
+            }
+            result.setPlayer(null);
+            if ( "conflict".equals(error.getError()) ) {
+                result.setStatus(PlayerImportResult.CONFLICT);
+                result.setMessage("Player already exists");
+            } else {
+                result.setStatus(PlayerImportResult.INVALID);
+                result.setMessage(error.getReason());
+            }
+        }
+        chunk.clear();
+    }
+
+    @Gauge(name = "playerImport_created",
+        unit = MetricUnits.NONE,
+        tags = "label=playerImport")
+    public long getCreated() {
+        return created.sum();
+    }
+}
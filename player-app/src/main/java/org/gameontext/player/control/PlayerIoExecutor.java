@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Timer;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.DocumentNotFoundException;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+
+/**
+ * Bounded pool used to run database calls for suspended (async) requests,
+ * so that slow CouchDB responses hold one of these threads rather than
+ * one of the (few) Liberty request threads.
+ *
+ * When the queue is full, or the call takes too long, the request is
+ * answered with the fallback if there is one, or 503 Service Unavailable.
+ */
+@ApplicationScoped
+public class PlayerIoExecutor {
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    @Inject
+    protected MetricRegistry registry;
+
+    private final int threads = Env.getInt("PLAYER_IO_THREADS", 10);
+    private final int queueSize = Env.getInt("PLAYER_IO_QUEUE", 100);
+    private final long timeout = Env.getInt("PLAYER_IO_TIMEOUT_MS", 5000);
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private ThreadPoolExecutor pool;
+
+    @PostConstruct
+    public void init() {
+        ThreadFactory factory = threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), factory);
+        pool.allowCoreThreadTimeOut(true);
+        Log.log(Level.INFO, this, "Player I/O executor: {0} threads, queue {1}, timeout {2}ms", threads, queueSize, timeout);
+    }
+
+    /**
+     * Time a suspended request until its response has been sent (or has
+     * failed). @Timed on the resource method would only time handing the
+     * request over to this pool.
+     * @param response suspended response
+     * @param resource resource class: the timer name is relative to it, as for @Timed
+     * @param name timer name
+     * @param label value of the label tag
+     */
+    public void time(AsyncResponse response, Class<?> resource, String name, String label) {
+        if ( registry == null ) {
+            return;
+        }
+        Metadata metadata = new Metadata(MetricRegistry.name(resource, name), MetricType.TIMER);
+        metadata.setReusable(true);
+        metadata.addTag("label=" + label);
+        Timer.Context timing = registry.timer(metadata).time();
+        response.register((CompletionCallback) failure -> timing.stop());
+    }
+
+    /**
+     * Run the task on the I/O pool, and resume the response with its result.
+     * Exceptions thrown by the task are passed to the response, to be mapped
+     * to an error response as if thrown by the resource method.
+     * @param response suspended response
+     * @param task database work, returns the response entity (or Response)
+     */
+    public void submit(AsyncResponse response, Callable<?> task) {
+        submit(response, task, null);
+    }
+
+    /**
+     * @param response suspended response
+     * @param task database work, returns the response entity (or Response)
+     * @param fallback supplies the response entity if the task fails with a
+     *          server side error, times out, or can not be queued. May be null.
+     */
+    public void submit(AsyncResponse response, Callable<?> task, Supplier<?> fallback) {
+        AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        response.setTimeout(timeout, TimeUnit.MILLISECONDS);
+        response.setTimeoutHandler(r -> {
+            timedOut.increment();
+            Future<?> f = future.get();
+            if ( f != null ) {
+                f.cancel(true);
+            }
+            r.resume(fallback == null ? unavailable("Request timed out") : fallback.get());
+        });
+
+        try {
+            future.set(pool.submit(() -> run(response, task, fallback)));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            response.resume(fallback == null ? unavailable("Too many requests") : fallback.get());
+        }
+    }
+
+    private void run(AsyncResponse response, Callable<?> task, Supplier<?> fallback) {
+        try {
+            response.resume(task.call());
+        } catch (PlayerAccountModificationException | DocumentNotFoundException e) {
+            // the caller's problem: no fallback for these
+            response.resume(e);
+        } catch (Exception e) {
+            if ( fallback == null ) {
+                response.resume(e);
+            } else {
+                Log.log(Level.WARNING, this, "Request failed, using fallback", e);
+                response.resume(fallback.get());
+            }
+        }
+    }
+
+    private PlayerAccountModificationException unavailable(String message) {
+        return new PlayerAccountModificationException(Response.Status.SERVICE_UNAVAILABLE,
+                message, "Player service is busy, try again later");
+    }
+
+    /**
+     * Stop accepting work, and give requests already running (or queued)
+     * up to the request timeout to finish.
+     */
+    @PreDestroy
+    public void stop() {
+        if ( pool == null ) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            if ( !pool.awaitTermination(timeout, TimeUnit.MILLISECONDS) ) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Gauge(name = "playerIo_active",
+        unit = MetricUnits.NONE,
+        tags = "label=playerIo")
+    public long getActive() {
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    @Gauge(name = "playerIo_queued",
+        unit = MetricUnits.NONE,
+        tags = "label=playerIo")
+    public long getQueued() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    @Gauge(name = "playerIo_rejected",
+        unit = MetricUnits.NONE,
+        tags = "label=playerIo")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Gauge(name = "playerIo_timedOut",
+        unit = MetricUnits.NONE,
+        tags = "label=playerIo")
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+}
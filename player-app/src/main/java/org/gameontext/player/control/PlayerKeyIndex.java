@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.ChangeStamps;
+import org.gameontext.player.utils.Env;
+
+/**
+ * Finds the player that owns a shared secret (api key), using the byApiKey
+ * view. The view and the cache are both keyed by a digest of the secret, so
+ * the secret itself never appears in a query URL. Cached matches are dropped
+ * when the player is deleted or their key (or name) changes.
+ */
+@ApplicationScoped
+public class PlayerKeyIndex {
+
+    /** Player id and name for a shared secret */
+    public static class KeyOwner {
+        final byte[] secret;
+        final String id;
+        final String name;
+
+        KeyOwner(byte[] secret, String id, String name) {
+            this.secret = secret;
+            this.id = id;
+            this.name = name;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerChangesFeed changesFeed;
+
+    private final int maxSize = Env.getInt("PLAYER_KEY_CACHE_SIZE", 1000);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Changes by player id: a lookup that raced with one to its player is not cached */
+    private final ChangeStamps changes = new ChangeStamps(Env.getInt("PLAYER_CACHE_CHANGES", 10000));
+
+    /** digest of secret -> owner, access-ordered for LRU eviction */
+    private final Map<String, KeyOwner> owners = new LinkedHashMap<String, KeyOwner>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyOwner> eldest) {
+            if ( size() > maxSize ) {
+                byPlayer.remove(eldest.getValue().id);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** player id -> digest of secret, to find entries to drop when a player changes */
+    private final Map<String, String> byPlayer = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if ( maxSize > 0 ) {
+            changesFeed.addListener(this::onChange);
+        }
+    }
+
+    /**
+     * @param sharedSecret the secret to look up
+     * @return the player that owns the secret, or null if no player does
+     */
+    public KeyOwner find(String sharedSecret) {
+        if ( sharedSecret == null || sharedSecret.isEmpty() || PlayerDbRecord.ACCESS_DENIED.equals(sharedSecret) ) {
+            return null;
+        }
+
+        byte[] secret = sharedSecret.getBytes(StandardCharsets.UTF_8);
+        String digest = digest(secret);
+
+        synchronized (owners) {
+            KeyOwner owner = owners.get(digest);
+            if ( owner != null && MessageDigest.isEqual(owner.secret, secret) ) {
+                hits.increment();
+                return owner;
+            }
+        }
+        misses.increment();
+
+        long before = changes.now();
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("byApiKey")
+                .key(digest).includeDocs(false);
+        List<ViewResult.Row> rows;
+        try {
+            rows = db.queryView(query).getRows();
+        } catch (DocumentNotFoundException e) {
+            // not the caller's 404: the design document predates the view
+            throw new IllegalStateException("byApiKey view is missing from _design/players", e);
+        }
+        if ( rows.isEmpty() ) {
+            // unknown secrets are not cached
+            return null;
+        }
+
+        ViewResult.Row row = rows.get(0);
+        KeyOwner owner = new KeyOwner(secret, row.getId(), row.getValue());
+        if ( maxSize > 0 ) {
+            synchronized (owners) {
+                if ( !changes.changedSince(owner.id, before) ) {
+                    String previous = byPlayer.put(owner.id, digest);
+                    if ( previous != null ) {
+                        owners.remove(previous);
+                    }
+                    owners.put(digest, owner);
+                }
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Forget the secret of the given player (e.g. when it has been replaced).
+     */
+    public void evict(String playerId) {
+        changes.changed(playerId);
+        synchronized (owners) {
+            String digest = byPlayer.remove(playerId);
+            if ( digest != null ) {
+                owners.remove(digest);
+            }
+        }
+    }
+
+    void onChange(DocumentChange change, PlayerDbRecord record) {
+        String id = change.getId();
+        changes.changed(id);
+
+        synchronized (owners) {
+            String digest = byPlayer.get(id);
+            if ( digest != null && !stillOwns(owners.get(digest), record) ) {
+                byPlayer.remove(id);
+                owners.remove(digest);
+            }
+        }
+    }
+
+    /**
+     * @return true if the changed player document still matches the cached
+     *          entry, e.g. when the player has only moved
+     */
+    private static boolean stillOwns(KeyOwner owner, PlayerDbRecord record) {
+        return owner != null
+                && record != null
+                && record.getApiKey() != null
+                && record.getName() != null
+                && record.getName().equals(owner.name)
+                && MessageDigest.isEqual(owner.secret, record.getApiKey().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Base64 of the SHA-256 of the secret: views/lib/sha256 in _design/players
+     * computes the same digest for the byApiKey view.
+     */
+    static String digest(byte[] secret) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha.digest(secret));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Gauge(name = "playerKeyIndex_hits",
+        unit = MetricUnits.NONE,
+        tags = "label=playerKeyIndex")
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Gauge(name = "playerKeyIndex_misses",
+        unit = MetricUnits.NONE,
+        tags = "label=playerKeyIndex")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Gauge(name = "playerKeyIndex_size",
+        unit = MetricUnits.NONE,
+        tags = "label=playerKeyIndex")
+    public long getSize() {
+        synchronized (owners) {
+            return owners.size();
+        }
+    }
+}
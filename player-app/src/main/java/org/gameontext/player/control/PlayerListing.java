@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * All players (without credentials), kept in memory for listings.
+ *
+ * The copy is read once from the all view, when the first listing is
+ * requested, and then kept up to date by the changes feed. The sequence of
+ * the last change applied gives listings their ETag.
+ *
+ * Players are in id order (Java String order), which is not the collation
+ * of the all view: pages read from the copy and pages read from the view
+ * can not be mixed.
+ */
+@ApplicationScoped
+public class PlayerListing {
+
+    /** no change read from the feed for this long: the copy may be out of date */
+    static final long STALE_AFTER = 3 * PlayerChangesFeed.POLL_TIMEOUT;
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerLocationStore locations;
+
+    @Inject
+    protected PlayerChangesFeed changesFeed;
+
+    final boolean enabled = Env.getBoolean("PLAYER_LISTING_SNAPSHOT", true);
+    final long retryInterval = Env.getInt("PLAYER_LISTING_RETRY_MS", 1000);
+    private final int chunkSize = Math.max(1, Env.getInt("PLAYER_LOCATION_BULK_CHUNK", 100));
+
+    /** tells instances apart in ETags that include moves held in memory */
+    private final String instance = UUID.randomUUID().toString().substring(0, 8);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** player id -> player, in id order */
+    private final ConcurrentSkipListMap<String, PlayerDbRecord> players = new ConcurrentSkipListMap<>();
+
+    /** guards changes to players made by the feed against rows read from the view */
+    private final Object updating = new Object();
+
+    /** ids changed by the feed while the copy is being read, null otherwise */
+    private volatile Set<String> changedWhileLoading = null;
+
+    /** database sequence reflected by the copy */
+    private volatile String sequence = null;
+    private volatile boolean loaded = false;
+    private volatile long loadedAt = 0;
+    private volatile long nextLoad = 0;
+    private final ReentrantLock loading = new ReentrantLock();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder changesApplied = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if ( enabled ) {
+            // follow changes before reading the view, so that none are missed in between
+            changesFeed.addListener(this::onChange);
+        }
+    }
+
+    /**
+     * Read the copy, if it has not been read yet. Only one caller reads from
+     * the database at a time, and a failed read is only tried again after
+     * PLAYER_LISTING_RETRY_MS.
+     * @return false if there is no copy to serve listings from (disabled, or
+     *          not read yet): read the all view instead.
+     */
+    public boolean refresh() {
+        if ( !enabled ) {
+            return false;
+        }
+        if ( loaded || System.currentTimeMillis() < nextLoad ) {
+            return loaded;
+        }
+        if ( !loading.tryLock() ) {
+            return loaded;
+        }
+        try {
+            if ( !loaded ) {
+                load();
+            }
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Unable to read player listing", e);
+            nextLoad = System.currentTimeMillis() + retryInterval;
+        } finally {
+            // changes made before the next attempt are in the view it reads
+            changedWhileLoading = null;
+            loading.unlock();
+        }
+        return loaded;
+    }
+
+    private void load() {
+        // changes applied before this are already in the view
+        changedWhileLoading = ConcurrentHashMap.newKeySet();
+        String since = db.getDbInfo().getUpdateSeqAsString();
+
+        ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").includeDocs(true);
+        try (StreamingViewResult rows = db.queryForStreamingView(all)) {
+            for (ViewResult.Row row : rows) {
+                PlayerDbRecord record = toRecord(row.getDocAsNode());
+                if ( record != null ) {
+                    synchronized (updating) {
+                        // the feed has a version at least as recent
+                        if ( !changedWhileLoading.contains(record.getId()) ) {
+                            players.put(record.getId(), record);
+                        }
+                    }
+                }
+            }
+        }
+        synchronized (updating) {
+            if ( sequence == null ) {
+                sequence = since;
+            }
+        }
+        loads.increment();
+        loadedAt = System.currentTimeMillis();
+        loaded = true;
+        Log.log(Level.INFO, this, "Player listing loaded: {0} players", players.size());
+    }
+
+    void onChange(DocumentChange change, PlayerDbRecord record) {
+        synchronized (updating) {
+            Set<String> changed = changedWhileLoading;
+            if ( changed != null ) {
+                changed.add(change.getId());
+            }
+            if ( record == null || record.getName() == null ) {
+                // deleted, or not a player (e.g. location and design documents)
+                players.remove(change.getId());
+            } else {
+                players.put(record.getId(), withoutCredentials(record));
+            }
+            sequence = change.getStringSequence();
+        }
+        changesApplied.increment();
+    }
+
+    /**
+     * @return a copy: the record is shared with the other listeners
+     */
+    private static PlayerDbRecord withoutCredentials(PlayerDbRecord record) {
+        PlayerDbRecord copy = record.withLocation(record.getLocation());
+        copy.setApiKey(null);
+        return copy;
+    }
+
+    /**
+     * @return the player, without credentials, or null if the document is not a player
+     */
+    private PlayerDbRecord toRecord(JsonNode doc) {
+        if ( doc == null || doc.isNull() || !doc.hasNonNull("name") ) {
+            return null;
+        }
+        try {
+            PlayerDbRecord record = mapper.treeToValue(doc, PlayerDbRecord.class);
+            record.setApiKey(null);
+            return record;
+        } catch (JsonProcessingException e) {
+            Log.log(Level.FINER, this, "Ignoring unreadable player document", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return entity tag for listings served from the copy
+     */
+    public String getETag() {
+        String seq = sequence;
+        String tag = seq == null ? "none" : UUID.nameUUIDFromBytes(seq.getBytes(StandardCharsets.UTF_8)).toString();
+        long pendingVersion = locations.getPendingVersion();
+        if ( pendingVersion > 0 ) {
+            tag = tag + "-" + instance + "." + pendingVersion;
+        }
+        // weak: the bytes differ when compressed
+        return "W/\"" + tag + "\"";
+    }
+
+    /**
+     * @return true once the copy has been read
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return true if changes have not been read from the feed for a while
+     */
+    public boolean isStale() {
+        return loaded && System.currentTimeMillis() - lastUpdated() > STALE_AFTER;
+    }
+
+    /**
+     * @return seconds since the copy was known to be up to date
+     */
+    public long getAge() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - lastUpdated());
+    }
+
+    private long lastUpdated() {
+        return Math.max(loadedAt, changesFeed.getLastRead());
+    }
+
+    public int size() {
+        return players.size();
+    }
+
+    /**
+     * @param startId first player id (inclusive), or null to start at the beginning
+     * @param limit maximum number of players
+     * @return players, with their current location
+     */
+    public List<PlayerDbRecord> page(String startId, int limit) {
+        NavigableMap<String, PlayerDbRecord> from = startId == null ? players : players.tailMap(startId, true);
+        List<PlayerDbRecord> page = new ArrayList<>(Math.min(limit, from.size()));
+        for (PlayerDbRecord record : from.values()) {
+            if ( page.size() >= limit ) {
+                break;
+            }
+            page.add(record);
+        }
+        return locations.current(page);
+    }
+
+    /**
+     * Pass every player to the consumer, with its current location. Players
+     * are handled in chunks of PLAYER_LOCATION_BULK_CHUNK.
+     * @param output flushed after each chunk. May be null.
+     */
+    public void forEach(PlayerLocationStore.PlayerConsumer consumer, Flushable output) throws IOException {
+        List<PlayerDbRecord> chunk = new ArrayList<>(chunkSize);
+        for (Map.Entry<String, PlayerDbRecord> entry : players.entrySet()) {
+            chunk.add(entry.getValue());
+            if ( chunk.size() >= chunkSize ) {
+                accept(chunk, consumer);
+                if ( output != null ) {
+                    output.flush();
+                }
+            }
+        }
+        accept(chunk, consumer);
+    }
+
+    private void accept(List<PlayerDbRecord> chunk, PlayerLocationStore.PlayerConsumer consumer) throws IOException {
+        for (PlayerDbRecord record : locations.current(chunk)) {
+            consumer.accept(record);
+        }
+        chunk.clear();
+    }
+
+    @Gauge(name = "playerListing_players",
+        unit = MetricUnits.NONE,
+        tags = "label=playerListing")
+    public long getPlayers() {
+        return players.size();
+    }
+
+    @Gauge(name = "playerListing_loads",
+        unit = MetricUnits.NONE,
+        tags = "label=playerListing")
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Gauge(name = "playerListing_changesApplied",
+        unit = MetricUnits.NONE,
+        tags = "label=playerListing")
+    public long getChangesApplied() {
+        return changesApplied.sum();
+    }
+}
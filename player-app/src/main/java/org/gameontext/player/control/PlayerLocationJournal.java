@@ -0,0 +1,590 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationJournalEntry;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Append-only journal of player moves, kept on local disk in
+ * PLAYER_JOURNAL_DIR (disabled when that is not set).
+ *
+ * Moves are queued, and a single writer thread appends them to the current
+ * segment file (one JSON object per line) in batches, with one sequential
+ * write (and optionally one fsync) per batch. Full segments are closed;
+ * when there are more than PLAYER_JOURNAL_SEGMENTS of them, the oldest are
+ * compacted into a snapshot holding only the latest move of each player.
+ *
+ * When the queue is full, moves already written to the database are
+ * dropped (they are only history). Write-behind moves, and the markers
+ * recording that they were written, are not: the caller waits up to
+ * PLAYER_JOURNAL_WAIT_MS for room, then writes the entry itself. Entries
+ * are not always in sequence order on disk: reading and compaction go by
+ * sequence number.
+ *
+ * The journal is read back on startup to rebuild the recent history of
+ * each player, and to recover write-behind moves that had not reached the
+ * database (see {@link PlayerLocationStore}).
+ */
+@ApplicationScoped
+public class PlayerLocationJournal implements Runnable {
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String SNAPSHOT = "snapshot.log";
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    /** not final, so tests can use a temporary directory and small segments */
+    String directory = Env.getString("PLAYER_JOURNAL_DIR", null);
+    long segmentBytes = Env.getInt("PLAYER_JOURNAL_SEGMENT_KB", 16 * 1024) * 1024L;
+    int maxSegments = Math.max(2, Env.getInt("PLAYER_JOURNAL_SEGMENTS", 8));
+    long waitMillis = Env.getInt("PLAYER_JOURNAL_WAIT_MS", 1000);
+    private final int historySize = Env.getInt("PLAYER_JOURNAL_HISTORY", 20);
+    private final int batchSize = Math.max(1, Env.getInt("PLAYER_JOURNAL_BATCH", 500));
+    private final boolean fsync = Env.getBoolean("PLAYER_JOURNAL_FSYNC", true);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final BlockingQueue<LocationJournalEntry> queue =
+            new LinkedBlockingQueue<>(Math.max(1, Env.getInt("PLAYER_JOURNAL_QUEUE", 10000)));
+
+    /** player id -> most recent moves, newest first */
+    private final Map<String, Deque<LocationJournalEntry>> recent = new ConcurrentHashMap<>();
+
+    /** write-behind moves that had not been written to the database, found on startup */
+    private Map<String, LocationJournalEntry> unflushed = Collections.emptyMap();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder direct = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    /** held while writing: by the writer thread, or a caller writing a pending move itself */
+    private final Object writeLock = new Object();
+
+    private Path dir;
+    private FileChannel segment;
+    private long segmentNumber;
+
+    private Thread thread;
+    private volatile boolean keepGoing = true;
+
+    @PostConstruct
+    public void init() {
+        if ( directory == null ) {
+            Log.log(Level.INFO, this, "Player location journal disabled (PLAYER_JOURNAL_DIR is not set)");
+            return;
+        }
+        try {
+            dir = Files.createDirectories(Paths.get(directory));
+            load();
+            // always start a new segment: a torn line at the end of the
+            // previous one stays where it is
+            openSegment(segmentNumber + 1);
+            compact();
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, this, "Unable to open player location journal in " + directory, e);
+            dir = null;
+            return;
+        }
+        Log.log(Level.INFO, this, "Player location journal in {0}: {1} unwritten moves recovered",
+                dir, unflushed.size());
+
+        if ( threadFactory != null ) {
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * @return sequence number for the next move
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Queue a move to be journaled. Does not wait for it to be written,
+     * unless it is pending and the queue is full.
+     * @param playerId player id
+     * @param change the move
+     * @param seq sequence number, from {@link #nextSequence()}
+     * @param pending true if the move has not been written to the database yet
+     */
+    public void append(String playerId, LocationChange change, long seq, boolean pending) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        LocationJournalEntry entry = new LocationJournalEntry(playerId, change);
+        entry.setSeq(seq);
+        if ( pending ) {
+            entry.setPending(true);
+        }
+        remember(entry);
+        if ( pending ) {
+            offerDurable(entry);
+        } else {
+            offer(entry);
+        }
+    }
+
+    /**
+     * Record that write-behind moves have been written to the database.
+     * @param written player id -> sequence number of the move that was written
+     */
+    public void flushed(Map<String, Long> written) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : written.entrySet()) {
+            // a lost marker would replay the move on the next start
+            offerDurable(LocationJournalEntry.flushed(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private void offer(LocationJournalEntry entry) {
+        if ( queue.offer(entry) ) {
+            appended.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * A write-behind move is only safe once it is on disk, and its marker
+     * once it is written: never drop them.
+     */
+    private void offerDurable(LocationJournalEntry entry) {
+        try {
+            if ( queue.offer(entry, waitMillis, TimeUnit.MILLISECONDS) ) {
+                appended.increment();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the writer is behind: write it here, ahead of what is queued
+        // (recovery goes by sequence number, not by position)
+        try {
+            write(Collections.singletonList(entry));
+            appended.increment();
+            direct.increment();
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, this, "Unable to journal the move of " + entry.getPlayerId()
+                    + ": it may not be recovered correctly if this instance stops now", e);
+        }
+    }
+
+    /**
+     * @return write-behind moves that had not been written to the database
+     *          when this instance last stopped, by player id
+     */
+    public Map<String, LocationJournalEntry> recover() {
+        return unflushed;
+    }
+
+    /**
+     * @param playerId player id
+     * @param limit maximum number of moves to return
+     * @return the most recent moves of the player, newest first. Older
+     *          moves are only kept until they are compacted.
+     */
+    public List<LocationJournalEntry> history(String playerId, int limit) {
+        List<LocationJournalEntry> result = new ArrayList<>();
+        recent.computeIfPresent(playerId, (key, moves) -> {
+            for (LocationJournalEntry move : moves) {
+                if ( result.size() >= limit ) {
+                    break;
+                }
+                result.add(move);
+            }
+            return moves;
+        });
+        return result;
+    }
+
+    /**
+     * Forget the history of a player that has been deleted. Their moves stay
+     * in the journal until it is compacted.
+     */
+    public void forget(String playerId) {
+        recent.remove(playerId);
+    }
+
+    private void remember(LocationJournalEntry entry) {
+        if ( historySize <= 0 ) {
+            return;
+        }
+        LocationJournalEntry move = entry.publicCopy();
+        recent.compute(entry.getPlayerId(), (key, moves) -> {
+            if ( moves == null ) {
+                moves = new ArrayDeque<>();
+            }
+            moves.addFirst(move);
+            while ( moves.size() > historySize ) {
+                moves.removeLast();
+            }
+            return moves;
+        });
+    }
+
+    @Override
+    public void run() {
+        Log.log(Level.FINEST, this, "JOURNAL THREAD STARTED");
+        boolean interrupted = false;
+
+        while (keepGoing) {
+            try {
+                LocationJournalEntry first = queue.poll(1, TimeUnit.SECONDS);
+                if ( first != null ) {
+                    List<LocationJournalEntry> batch = new ArrayList<>();
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                // what is still queued is written by stop()
+                interrupted = true;
+                break;
+            } catch (IOException e) {
+                Log.log(Level.WARNING, this, "Error writing player location journal", e);
+            }
+        }
+
+        Log.log(Level.FINEST, this, "JOURNAL THREAD STOPPED");
+
+        // reset interrupted flag when thread asked to stop
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write everything that has been queued (tests, and shutdown).
+     */
+    void drain() throws IOException {
+        List<LocationJournalEntry> batch = new ArrayList<>();
+        while ( queue.drainTo(batch, batchSize) > 0 ) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Append a batch to the current segment: one write, one (optional) sync.
+     * Compacts when the segment is full and a new one is started.
+     */
+    void write(List<LocationJournalEntry> batch) throws IOException {
+        synchronized (writeLock) {
+            if ( !segment.isOpen() ) {
+                // closed by an interrupt during an earlier write: the end of it may be torn
+                openSegment(segmentNumber + 1);
+            }
+            writeAll(segment, batch);
+            if ( fsync ) {
+                segment.force(false);
+            }
+
+            if ( segment.size() >= segmentBytes ) {
+                segment.close();
+                openSegment(segmentNumber + 1);
+                compact();
+            }
+        }
+    }
+
+    /**
+     * When there are too many closed segments, fold the older half of them
+     * into the snapshot: the latest move of each player (and whether it was
+     * written to the database) is all that is kept. Latest by sequence
+     * number, as when the journal is read: a pending move written directly
+     * can be ahead of older moves that were queued.
+     */
+    void compact() throws IOException {
+        TreeMap<Long, Path> closed = segments();
+        closed.remove(segmentNumber);
+        if ( closed.size() <= maxSegments ) {
+            return;
+        }
+
+        List<Path> folded = new ArrayList<>();
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if ( Files.exists(snapshot) ) {
+            folded.add(snapshot);
+        }
+        int count = closed.size() - maxSegments / 2;
+        for (Path path : closed.values()) {
+            if ( count-- <= 0 ) {
+                break;
+            }
+            folded.add(path);
+        }
+
+        Map<String, LocationJournalEntry> moves = new LinkedHashMap<>();
+        Map<String, LocationJournalEntry> markers = new HashMap<>();
+        for (Path path : folded) {
+            read(path, entry -> {
+                if ( entry.isMarker() ) {
+                    markers.merge(entry.getPlayerId(), entry,
+                            (a, b) -> a.getFlushed() >= b.getFlushed() ? a : b);
+                } else {
+                    moves.merge(entry.getPlayerId(), entry,
+                            (a, b) -> seq(a) > seq(b) ? a : b);
+                }
+            });
+        }
+
+        Path temp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeAll(out, moves.values());
+            writeAll(out, markers.values());
+            out.force(false);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // if we stop before these are deleted, they are read again after the
+        // snapshot: that only repeats moves that are already in it
+        for (Path path : folded) {
+            if ( !path.equals(snapshot) ) {
+                Files.delete(path);
+            }
+        }
+        compactions.increment();
+        Log.log(Level.FINE, this, "Compacted {0} journal segments: {1} players", folded.size(), moves.size());
+    }
+
+    private void writeAll(FileChannel out, Collection<LocationJournalEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 128);
+        for (LocationJournalEntry entry : entries) {
+            bytes.write(mapper.writeValueAsBytes(entry));
+            bytes.write('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while ( buffer.hasRemaining() ) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Read the snapshot and segments, oldest first.
+     */
+    private void load() throws IOException {
+        Map<String, LocationJournalEntry> moves = new HashMap<>();
+        Map<String, Long> written = new HashMap<>();
+        List<Path> paths = new ArrayList<>();
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if ( Files.exists(snapshot) ) {
+            paths.add(snapshot);
+        }
+        TreeMap<Long, Path> segments = segments();
+        paths.addAll(segments.values());
+        if ( !segments.isEmpty() ) {
+            segmentNumber = segments.lastKey();
+        }
+
+        long maxSeq = 0;
+        for (Path path : paths) {
+            List<LocationJournalEntry> entries = new ArrayList<>();
+            read(path, entries::add);
+            for (LocationJournalEntry entry : entries) {
+                if ( entry.isMarker() ) {
+                    written.merge(entry.getPlayerId(), entry.getFlushed(), Math::max);
+                    continue;
+                }
+                long seq = seq(entry);
+                maxSeq = Math.max(maxSeq, seq);
+                LocationJournalEntry previous = moves.get(entry.getPlayerId());
+                if ( previous == null || seq(previous) <= seq ) {
+                    moves.put(entry.getPlayerId(), entry);
+                }
+                remember(entry);
+            }
+        }
+        sequence.set(maxSeq);
+
+        Map<String, LocationJournalEntry> recovered = new HashMap<>();
+        for (LocationJournalEntry move : moves.values()) {
+            if ( Boolean.TRUE.equals(move.getPending())
+                    && written.getOrDefault(move.getPlayerId(), -1L) < move.getSeq() ) {
+                recovered.put(move.getPlayerId(), move);
+            }
+        }
+        unflushed = recovered;
+    }
+
+    private static long seq(LocationJournalEntry entry) {
+        return entry.getSeq() == null ? 0 : entry.getSeq();
+    }
+
+    private void read(Path path, Consumer<LocationJournalEntry> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                if ( line.isEmpty() ) {
+                    continue;
+                }
+                try {
+                    consumer.accept(mapper.readValue(line, LocationJournalEntry.class));
+                } catch (IOException e) {
+                    // torn write at the end of a segment
+                    Log.log(Level.FINE, this, "Skipping unreadable journal line in {0}", path);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return segment files, by number (oldest first)
+     */
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    Log.log(Level.FINE, this, "Ignoring {0}", path);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private void openSegment(long number) throws IOException {
+        segmentNumber = number;
+        segment = FileChannel.open(dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Stop the writer thread, and write whatever is still queued. The thread
+     * is not interrupted: an interrupt during a write closes the segment.
+     * It stops after its current batch, or once its poll times out.
+     */
+    @PreDestroy
+    public void stop() {
+        keepGoing = false;
+        if ( !isEnabled() ) {
+            return;
+        }
+
+        if ( thread != null && thread.isAlive() ) {
+            Log.log(Level.FINEST, this, "Stopping journal thread");
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            drain();
+            synchronized (writeLock) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            Log.log(Level.SEVERE, this, "Unable to write player location journal", e);
+        }
+    }
+
+    @Gauge(name = "playerJournal_appended",
+        unit = MetricUnits.NONE,
+        tags = "label=playerJournal")
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    @Gauge(name = "playerJournal_dropped",
+        unit = MetricUnits.NONE,
+        tags = "label=playerJournal")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Gauge(name = "playerJournal_direct",
+        unit = MetricUnits.NONE,
+        tags = "label=playerJournal")
+    public long getDirect() {
+        return direct.sum();
+    }
+
+    @Gauge(name = "playerJournal_queued",
+        unit = MetricUnits.NONE,
+        tags = "label=playerJournal")
+    public long getQueued() {
+        return queue.size();
+    }
+
+    @Gauge(name = "playerJournal_compactions",
+        unit = MetricUnits.NONE,
+        tags = "label=playerJournal")
+    public long getCompactions() {
+        return compactions.sum();
+    }
+}
@@ -0,0 +1,1310 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.changes.DocumentChange;
+import org.ektorp.UpdateHandlerRequest;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.player.PlayerApplication;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationJournalEntry;
+import org.gameontext.player.entity.LocationUpdateResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.entity.PlayerMove;
+import org.gameontext.player.entity.PlayerMoveResult;
+import org.gameontext.player.utils.ChangeStamps;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+import org.gameontext.player.utils.RoomOccupancy;
+import org.gameontext.player.utils.StripedLock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads and writes player locations.
+ *
+ * By default a move is written straight to CouchDB with the location
+ * update handler. With PLAYER_LOCATION_WRITE_BEHIND=true, moves are
+ * applied to an in-memory table of pending locations instead (which
+ * answers reads immediately), and a background thread writes them to
+ * CouchDB in _bulk_docs batches. Only the latest location of a player
+ * is written, however often they moved in between.
+ *
+ * Pending locations are only known to this instance: write-behind should
+ * only be enabled when one instance handles all moves for a player.
+ *
+ * With PLAYER_LOCATION_DOCS=true, locations are kept in a separate
+ * document per player (loc:&lt;player id&gt;), so moves never conflict with
+ * profile updates. Players without one fall back to the location in their
+ * player document; the location document is created on their next move.
+ * This is one-way: moves made in this mode are only in location documents,
+ * and turning it off again would return those players to the (older)
+ * location in their player document. Single reads of location documents
+ * are cached, kept coherent by the changes feed.
+ *
+ * Successful moves are also recorded in the {@link PlayerLocationJournal}.
+ * In write-behind mode, moves it holds that never reached CouchDB are
+ * pending again after a restart.
+ */
+@ApplicationScoped
+public class PlayerLocationStore implements Runnable {
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected PlayerLocationJournal journal;
+
+    @Inject
+    protected PlayerChangesFeed changesFeed;
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    /** not final, so tests can enable it */
+    boolean writeBehind = Env.getBoolean("PLAYER_LOCATION_WRITE_BEHIND", false);
+    boolean locationDocs = Env.getBoolean("PLAYER_LOCATION_DOCS", false);
+    private final long flushInterval = Env.getInt("PLAYER_LOCATION_FLUSH_MS", 500);
+    private final int flushBatchSize = Math.max(1, Env.getInt("PLAYER_LOCATION_FLUSH_BATCH", 100));
+    private final int bulkChunkSize = Math.max(1, Env.getInt("PLAYER_LOCATION_BULK_CHUNK", 100));
+    private final boolean occupancyIndex = Env.getBoolean("PLAYER_OCCUPANCY_INDEX", true);
+
+    /** serializes moves of the same player within this instance */
+    private final StripedLock moveLocks = new StripedLock(Env.getInt("PLAYER_LOCATION_STRIPES", 64));
+    private final long moveLockTimeout = Env.getInt("PLAYER_LOCATION_LOCK_MS", 2000);
+
+    /** Told when a player enters or leaves a room, see {@link #addOccupancyListener} */
+    @FunctionalInterface
+    public interface OccupancyListener {
+        /**
+         * @param playerId player id
+         * @param from room the player left, or null if not known (or new)
+         * @param to room the player entered, or null if the player was deleted
+         */
+        void onMove(String playerId, String from, String to);
+    }
+
+    /** Receives player locations as they are read, see {@link #forEachLocation} */
+    @FunctionalInterface
+    public interface LocationConsumer {
+        void accept(String playerId, String location) throws IOException;
+    }
+
+    /** Receives players as they are read, see {@link #forEachPlayer} */
+    @FunctionalInterface
+    public interface PlayerConsumer {
+        void accept(PlayerDbRecord player) throws IOException;
+    }
+
+    /** A location that has not been written to CouchDB yet */
+    static class Pending {
+        final String location;
+
+        /** journal sequence number of the move */
+        final long seq;
+
+        Pending(String location, long seq) {
+            this.location = location;
+            this.seq = seq;
+        }
+    }
+
+    /** player id -> pending location (write-behind mode only) */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicLong pendingVersion = new AtomicLong();
+    private final LongAdder flushed = new LongAdder();
+
+    private final int docCacheSize = Env.getInt("PLAYER_CACHE_SIZE", 1000);
+    private final ChangeStamps docChanges = new ChangeStamps(Env.getInt("PLAYER_CACHE_CHANGES", 10000));
+
+    /** player id -> location from their location document, empty if they have none (location-document mode) */
+    private final Map<String, Optional<String>> docLocations =
+            new LinkedHashMap<String, Optional<String>>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Optional<String>> eldest) {
+            return size() > docCacheSize;
+        }
+    };
+
+    /** room id -> players, once built (see {@link #buildIndex()}) */
+    private final RoomOccupancy occupancy = new RoomOccupancy();
+    private volatile boolean indexReady = false;
+    private volatile long indexBuiltAt = 0;
+
+    /** players moved while the index is being built: the pass must not overwrite them */
+    private final Set<String> movedDuringBuild = ConcurrentHashMap.newKeySet();
+    private volatile boolean indexBuilding = false;
+
+    private final List<OccupancyListener> occupancyListeners = new CopyOnWriteArrayList<>();
+
+    private Thread thread;
+    private volatile boolean keepGoing = true;
+
+    @PostConstruct
+    public void init() {
+        if ( locationDocs ) {
+            Log.log(Level.INFO, this, "Player locations are stored in location documents");
+        }
+        if ( (occupancyIndex || locationDocs) && threadFactory != null ) {
+            changesFeed.addListener(this::onChange);
+        }
+        if ( occupancyIndex && threadFactory != null ) {
+            Thread builder = threadFactory.newThread(this::buildIndex);
+            if ( builder != null ) { // the factory may refuse
+                builder.start();
+            }
+        }
+        if ( writeBehind ) {
+            Log.log(Level.INFO, this, "Location write-behind enabled: flush every {0}ms, batches of {1}",
+                    flushInterval, flushBatchSize);
+
+            // moves that did not reach the database before the last shutdown
+            for (LocationJournalEntry move : journal.recover().values()) {
+                pending.putIfAbsent(move.getPlayerId(), new Pending(move.getNewLocation(), move.getSeq()));
+            }
+            if ( threadFactory != null ) {
+                thread = threadFactory.newThread(this);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Create the store as soon as the application starts rather than when a
+     * request first uses it, so that the occupancy index is built and the
+     * journaled write-behind moves are recovered right away.
+     */
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        Log.log(Level.FINE, this, "Player location store started");
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @param id player id
+     * @return the player location, or null if the player has never had one
+     * @throws DocumentNotFoundException if the player does not exist
+     */
+    public String getLocation(String id) {
+        Pending p = pending.get(id);
+        if ( p != null ) {
+            return p.location;
+        }
+        if ( locationDocs ) {
+            Optional<String> stored = locationDocLocation(id);
+            if ( stored.isPresent() ) {
+                return stored.get();
+            }
+        }
+        return cache.getLocation(id);
+    }
+
+    /**
+     * @return the location in the player's location document, empty if
+     *          they have none. Cached: as for the player cache, a read that
+     *          raced with a change to the same document is not cached.
+     */
+    private Optional<String> locationDocLocation(String id) {
+        synchronized (docLocations) {
+            Optional<String> cached = docLocations.get(id);
+            if ( cached != null ) {
+                return cached;
+            }
+        }
+
+        long before = docChanges.now();
+        PlayerLocationRecord doc = db.find(PlayerLocationRecord.class, PlayerLocationRecord.docId(id));
+        Optional<String> stored = Optional.ofNullable(doc == null ? null : doc.getLocation());
+        if ( docCacheSize > 0 ) {
+            synchronized (docLocations) {
+                if ( !docChanges.changedSince(id, before) ) {
+                    docLocations.putIfAbsent(id, stored);
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Record the location of a location document that has changed: written
+     * here, or seen on the changes feed (null to forget it).
+     */
+    private void locationDocChanged(String id, String location) {
+        docChanges.changed(id);
+        synchronized (docLocations) {
+            if ( location == null ) {
+                docLocations.remove(id);
+            } else if ( docCacheSize > 0 ) {
+                docLocations.put(id, Optional.of(location));
+            }
+        }
+    }
+
+    /**
+     * @param record player record read from the database (or cache)
+     * @return the record, or a copy of it with the location of a move that
+     *          has not been written yet
+     */
+    public PlayerDbRecord current(PlayerDbRecord record) {
+        if ( record == null || (pending.isEmpty() && !locationDocs) ) {
+            return record;
+        }
+        return current(Collections.singletonList(record)).get(0);
+    }
+
+    /**
+     * @param records player records read from the database (or cache)
+     * @return the records, with the location of moves that have not been
+     *          written yet, or that are stored in location documents.
+     *          Location documents are read with a single request.
+     */
+    public List<PlayerDbRecord> current(List<PlayerDbRecord> records) {
+        if ( pending.isEmpty() && !locationDocs ) {
+            return records;
+        }
+
+        Map<String, String> stored = locationDocs ? readLocationDocs(records) : Collections.emptyMap();
+        List<PlayerDbRecord> result = new ArrayList<>(records.size());
+        for (PlayerDbRecord record : records) {
+            Pending p = record == null ? null : pending.get(record.getId());
+            if ( p != null ) {
+                result.add(record.withLocation(p.location));
+            } else if ( record != null && stored.containsKey(record.getId()) ) {
+                result.add(record.withLocation(stored.get(record.getId())));
+            } else {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, String> readLocationDocs(List<PlayerDbRecord> records) {
+        List<String> ids = new ArrayList<>();
+        for (PlayerDbRecord record : records) {
+            if ( record != null ) {
+                ids.add(record.getId());
+            }
+        }
+
+        Map<String, String> locations = new HashMap<>();
+        for (PlayerLocationRecord doc : findLocationDocs(ids).values()) {
+            locations.put(doc.getPlayerId(), doc.getLocation());
+        }
+        return locations;
+    }
+
+    /**
+     * @param ids player ids
+     * @return the location documents of those players that have one, by player id
+     */
+    private Map<String, PlayerLocationRecord> findLocationDocs(Collection<String> ids) {
+        if ( ids.isEmpty() ) {
+            return Collections.emptyMap();
+        }
+        List<String> docIds = new ArrayList<>();
+        for (String id : ids) {
+            docIds.add(PlayerLocationRecord.docId(id));
+        }
+
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(docIds);
+        query.setIgnoreNotFound(true);
+        Map<String, PlayerLocationRecord> docs = new HashMap<>();
+        for (PlayerLocationRecord doc : db.queryView(query, PlayerLocationRecord.class)) {
+            if ( doc != null && doc.getPlayerId() != null ) {
+                docs.put(doc.getPlayerId(), doc);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Move a player, if they are currently at the expected old location
+     * (or have no location yet).
+     * @param id player id
+     * @param change the move
+     * @return the outcome: if the move was applied, the result contains the
+     *          moved player, otherwise the current location of the player.
+     * @throws DocumentNotFoundException if the player does not exist
+     * @throws PlayerAccountModificationException 503 if another move holding
+     *          the player's lock stripe takes more than PLAYER_LOCATION_LOCK_MS
+     */
+    public LocationUpdateResult move(String id, LocationChange change) {
+        // concurrent moves of one player (retries, racing rooms) wait here
+        // rather than conflicting with each other in the database
+        lockMove(id);
+        try {
+            if ( writeBehind ) {
+                LocationUpdateResult result = moveInMemory(id, change);
+                if ( result.isOk() ) {
+                    indexMove(id, result.getLocation());
+                }
+                return result;
+            }
+
+            LocationUpdateResult result = locationDocs
+                    ? moveLocationDoc(id, change)
+                    : moveInDatabase(id, change);
+            if ( result.isOk() ) {
+                indexMove(id, result.getLocation());
+                journal.append(id, change, journal.nextSequence(), false);
+            }
+            return result;
+        } finally {
+            moveLocks.unlock(id);
+        }
+    }
+
+    /**
+     * Wait (a bounded time) for the lock stripe of the player: a slow write
+     * must not hold up every player that hashes to the same stripe for good.
+     */
+    private void lockMove(String id) {
+        boolean locked = false;
+        try {
+            locked = moveLocks.tryLock(id, moveLockTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if ( !locked ) {
+            throw new PlayerAccountModificationException(Response.Status.SERVICE_UNAVAILABLE,
+                    "Unable to update player location", "Player is busy, try again later");
+        }
+    }
+
+    /**
+     * Forget the location of a player that has been deleted.
+     */
+    public void remove(String id) {
+        pending.remove(id);
+        journal.forget(id);
+        indexRemove(id);
+
+        if ( locationDocs ) {
+            PlayerLocationRecord doc = db.find(PlayerLocationRecord.class, PlayerLocationRecord.docId(id));
+            if ( doc != null ) {
+                db.delete(doc);
+            }
+            locationDocChanged(id, null);
+        }
+    }
+
+    private LocationUpdateResult moveInMemory(String id, LocationChange change) {
+        // read before computing: no I/O while holding the map entry
+        String stored = getLocation(id); // throws DocumentNotFoundException
+
+        LocationUpdateResult result = new LocationUpdateResult();
+        long seq = journal.nextSequence();
+        pending.compute(id, (key, p) -> {
+            String current = p == null ? stored : p.location;
+            if ( current != null && !current.equals(change.getOldLocation()) ) {
+                result.setLocation(current);
+                return p;
+            }
+            if ( p != null ) {
+                coalesced.increment();
+            }
+            result.setOk(true);
+            result.setLocation(change.getNewLocation());
+            return new Pending(change.getNewLocation(), seq);
+        });
+
+        if ( result.isOk() ) {
+            pendingVersion.incrementAndGet();
+            journal.append(id, change, seq, true);
+            result.setPlayer(cache.get(id).withLocation(result.getLocation()));
+        }
+        return result;
+    }
+
+    private LocationUpdateResult moveLocationDoc(String id, LocationChange change) {
+        PlayerDbRecord player = cache.get(id); // throws DocumentNotFoundException
+        PlayerLocationRecord doc = db.find(PlayerLocationRecord.class, PlayerLocationRecord.docId(id));
+
+        // no location document yet: the player document has the current location
+        String current = doc == null ? player.getLocation() : doc.getLocation();
+
+        LocationUpdateResult result = new LocationUpdateResult();
+        if ( current != null && !current.equals(change.getOldLocation()) ) {
+            result.setLocation(current);
+            return result;
+        }
+
+        if ( doc == null ) {
+            doc = new PlayerLocationRecord(id);
+            doc.setLocation(change.getNewLocation());
+            db.create(doc); // UpdateConflictException if created concurrently
+        } else {
+            doc.setLocation(change.getNewLocation());
+            db.update(doc); // UpdateConflictException if moved concurrently
+        }
+        locationDocChanged(id, change.getNewLocation());
+
+        result.setOk(true);
+        result.setLocation(change.getNewLocation());
+        result.setPlayer(player.withLocation(change.getNewLocation()));
+        return result;
+    }
+
+    private LocationUpdateResult moveInDatabase(String id, LocationChange change) {
+        // compare and set in one round trip, using the update handler
+        LocationUpdateResult result;
+        try {
+            result = db.callUpdateHandler(new UpdateHandlerRequest()
+                    .designDocId("_design/players")
+                    .functionName("location")
+                    .docId(id)
+                    .body(change), LocationUpdateResult.class);
+        } catch (DocumentNotFoundException e) {
+            // design document was created before the update handler was added
+            Log.log(Level.FINER, this, "location update handler not found, updating player document", e);
+            return moveDocument(id, change);
+        }
+
+        if ( result.isMissing() ) {
+            throw new DocumentNotFoundException(id);
+        }
+
+        if ( result.isOk() ) {
+            // the handler returns the updated document, but with the revision it
+            // had before the write (the new one is only in the response headers):
+            // don't pass the stale revision on, and drop any cached copy instead.
+            result.getPlayer().setRev(null);
+            cache.evict(id);
+        }
+        return result;
+    }
+
+    private LocationUpdateResult moveDocument(String id, LocationChange change) {
+        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
+
+        LocationUpdateResult result = new LocationUpdateResult();
+        if (p.getLocation()==null || p.getLocation().equals(change.getOldLocation())) {
+            p.setLocation(change.getNewLocation());
+            db.update(p);
+            cache.put(p);
+            result.setOk(true);
+            result.setPlayer(p);
+        }
+        result.setLocation(p.getLocation());
+        return result;
+    }
+
+    /**
+     * @return the location of every player, from the occupancy index, or
+     *          null if the index has not been built: no database access.
+     */
+    public Map<String, String> indexedLocations() {
+        return indexReady ? occupancy.locations() : null;
+    }
+
+    /**
+     * @return seconds since the occupancy index was known to be up to date:
+     *          when it was built, or when changes were last read from the feed
+     */
+    public long getIndexAge() {
+        long updated = Math.max(indexBuiltAt, changesFeed.getLastRead());
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - updated);
+    }
+
+    /**
+     * Find the players in a room: from the occupancy index once it has been
+     * built, or with the byLocation view. Either way the cost is proportional
+     * to the number of occupants rather than of players.
+     * Players without a location are in {@link PlayerApplication#FIRST_ROOM}.
+     * @param location a room id
+     * @return ids of the players in the room
+     * @throws DocumentNotFoundException if the design document predates the view
+     */
+    public Set<String> playersAt(String location) {
+        if ( indexReady ) {
+            return occupancy.playersAt(location);
+        }
+
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("byLocation")
+                .key(location).reduce(false).includeDocs(false);
+
+        Set<String> candidates = new LinkedHashSet<>();
+        for (ViewResult.Row row : db.queryView(query).getRows()) {
+            String id = row.getId();
+            candidates.add(id.startsWith(PlayerLocationRecord.ID_PREFIX)
+                    ? id.substring(PlayerLocationRecord.ID_PREFIX.length())
+                    : id);
+        }
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            if ( location.equals(entry.getValue().location) ) {
+                candidates.add(entry.getKey());
+            }
+        }
+
+        // the view has both documents of players with a location document:
+        // the player document may be indexed under a location they have left
+        Map<String, PlayerLocationRecord> docs = locationDocs ? findLocationDocs(candidates) : Collections.emptyMap();
+
+        Set<String> ids = new LinkedHashSet<>();
+        for (String id : candidates) {
+            Pending p = pending.get(id);
+            PlayerLocationRecord doc = docs.get(id);
+            String current = p != null ? p.location : doc != null ? doc.getLocation() : location;
+            if ( location.equals(current == null ? PlayerApplication.FIRST_ROOM : current) ) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Apply many moves, with one read and one _bulk_docs write per chunk of
+     * PLAYER_LOCATION_BULK_CHUNK moves. Each move is checked as for
+     * {@link #move(String, LocationChange)}; a move that loses a race with
+     * another change to the same document is reported as a conflict.
+     * @param moves moves, at most one per player
+     * @param moved told of each move that was applied, as soon as its chunk
+     *          has been written (so moves already made are announced even
+     *          if a later chunk fails). May be null.
+     * @return outcome of each move, in the same order
+     */
+    public List<PlayerMoveResult> moveAll(List<PlayerMove> moves, BiConsumer<PlayerMove, PlayerMoveResult> moved) {
+        List<PlayerMoveResult> results = new ArrayList<>(moves.size());
+        for (int i = 0; i < moves.size(); i += bulkChunkSize) {
+            List<PlayerMove> chunk = moves.subList(i, Math.min(moves.size(), i + bulkChunkSize));
+            List<PlayerMoveResult> applied;
+            if ( writeBehind ) {
+                // already batched: these only change the pending table
+                applied = new ArrayList<>(chunk.size());
+                for (PlayerMove move : chunk) {
+                    applied.add(moveOne(move));
+                }
+            } else {
+                applied = locationDocs ? moveLocationDocs(chunk) : movePlayerDocs(chunk);
+            }
+
+            for (int j = 0; moved != null && j < chunk.size(); j++) {
+                if ( applied.get(j).isOk() ) {
+                    moved.accept(chunk.get(j), applied.get(j));
+                }
+            }
+            results.addAll(applied);
+        }
+        return results;
+    }
+
+    private PlayerMoveResult moveOne(PlayerMove move) {
+        try {
+            LocationUpdateResult result = move(move.getPlayerId(), move);
+            PlayerMoveResult outcome = new PlayerMoveResult(move.getPlayerId(),
+                    result.isOk() ? PlayerMoveResult.OK : PlayerMoveResult.CONFLICT, result.getLocation());
+            outcome.setPlayer(result.getPlayer());
+            return outcome;
+        } catch (DocumentNotFoundException e) {
+            return new PlayerMoveResult(move.getPlayerId(), PlayerMoveResult.NOT_FOUND, null);
+        } catch (PlayerAccountModificationException e) {
+            // another move of this player is taking too long
+            return new PlayerMoveResult(move.getPlayerId(), PlayerMoveResult.CONFLICT, null);
+        }
+    }
+
+    private List<PlayerMoveResult> movePlayerDocs(List<PlayerMove> chunk) {
+        List<String> ids = new ArrayList<>();
+        for (PlayerMove move : chunk) {
+            ids.add(move.getPlayerId());
+        }
+
+        // current documents (not the cache: we need their latest revision)
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        query.setIgnoreNotFound(true);
+        Map<String, PlayerDbRecord> players = new HashMap<>();
+        for (PlayerDbRecord record : db.queryView(query, PlayerDbRecord.class)) {
+            if ( record != null && record.getName() != null ) {
+                players.put(record.getId(), record);
+            }
+        }
+
+        Map<String, PlayerMoveResult> results = new LinkedHashMap<>();
+        List<Object> updates = new ArrayList<>();
+        for (PlayerMove move : chunk) {
+            PlayerDbRecord player = players.get(move.getPlayerId());
+            PlayerMoveResult result = check(move, player, player == null ? null : player.getLocation());
+            if ( result.isOk() ) {
+                player.setLocation(move.getNewLocation());
+                result.setPlayer(player);
+                updates.add(player);
+            }
+            results.put(move.getPlayerId(), result);
+        }
+
+        return applyBulk(chunk, updates, results, id -> id);
+    }
+
+    private List<PlayerMoveResult> moveLocationDocs(List<PlayerMove> chunk) {
+        List<String> ids = new ArrayList<>();
+        for (PlayerMove move : chunk) {
+            ids.add(move.getPlayerId());
+        }
+        Map<String, PlayerDbRecord> players = cache.getAll(ids);
+        Map<String, PlayerLocationRecord> docs = findLocationDocs(ids);
+
+        Map<String, PlayerMoveResult> results = new LinkedHashMap<>();
+        List<Object> updates = new ArrayList<>();
+        for (PlayerMove move : chunk) {
+            PlayerDbRecord player = players.get(move.getPlayerId());
+            PlayerLocationRecord doc = docs.get(move.getPlayerId());
+            // no location document yet: the player document has the current location
+            String current = doc != null ? doc.getLocation() : player == null ? null : player.getLocation();
+
+            PlayerMoveResult result = check(move, player, current);
+            if ( result.isOk() ) {
+                if ( doc == null ) {
+                    doc = new PlayerLocationRecord(move.getPlayerId());
+                }
+                doc.setLocation(move.getNewLocation());
+                result.setPlayer(player.withLocation(move.getNewLocation()));
+                updates.add(doc);
+            }
+            results.put(move.getPlayerId(), result);
+        }
+
+        return applyBulk(chunk, updates, results,
+                docId -> docId.substring(PlayerLocationRecord.ID_PREFIX.length()));
+    }
+
+    /**
+     * @return the result of the move if it can be applied: ok, or why not
+     */
+    private PlayerMoveResult check(PlayerMove move, PlayerDbRecord player, String current) {
+        if ( player == null ) {
+            return new PlayerMoveResult(move.getPlayerId(), PlayerMoveResult.NOT_FOUND, null);
+        }
+        if ( current != null && !current.equals(move.getOldLocation()) ) {
+            return new PlayerMoveResult(move.getPlayerId(), PlayerMoveResult.CONFLICT, current);
+        }
+        return new PlayerMoveResult(move.getPlayerId(), PlayerMoveResult.OK, move.getNewLocation());
+    }
+
+    private List<PlayerMoveResult> applyBulk(List<PlayerMove> chunk, List<Object> updates,
+            Map<String, PlayerMoveResult> results, Function<String, String> playerId) {
+        if ( !updates.isEmpty() ) {
+            for (DocumentOperationResult error : db.executeBulk(updates)) {
+                PlayerMoveResult result = results.get(playerId.apply(error.getId()));
+                if ( result != null ) {
+                    Log.log(Level.FINER, this, "Location of {0} not written: {1}", result.getPlayerId(), error.getError());
+                    result.setStatus(PlayerMoveResult.CONFLICT);
+                    result.setLocation(null);
+                    result.setPlayer(null);
+                }
+            }
+        }
+
+        for (PlayerMove move : chunk) {
+            if ( results.get(move.getPlayerId()).isOk() ) {
+                if ( locationDocs ) {
+                    locationDocChanged(move.getPlayerId(), move.getNewLocation());
+                } else {
+                    cache.evict(move.getPlayerId());
+                }
+                indexMove(move.getPlayerId(), move.getNewLocation());
+                journal.append(move.getPlayerId(), move, journal.nextSequence(), false);
+            }
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    /**
+     * Count the players in each room: from the occupancy index once it has
+     * been built, otherwise with the _count reduce of the byLocation view.
+     * The view lags pending write-behind moves, and counts players twice
+     * while their player document and location document disagree: in those
+     * modes, the locationById view is read instead, with current locations.
+     * @param rooms rooms to count, or null (or empty) for every room with players
+     * @return room id -> number of players. Requested rooms without players are included, with 0.
+     * @throws PlayerAccountModificationException (503) if the design document predates counts
+     */
+    public Map<String, Long> countPlayers(List<String> rooms) throws IOException {
+        Map<String, Long> counts = new TreeMap<>();
+        boolean all = rooms == null || rooms.isEmpty();
+        if ( !all ) {
+            for (String room : rooms) {
+                counts.put(room, 0L);
+            }
+        }
+
+        if ( indexReady ) {
+            if ( all ) {
+                occupancy.forEachRoom((room, players) -> counts.put(room, (long) players));
+            } else {
+                for (String room : rooms) {
+                    counts.put(room, (long) occupancy.count(room));
+                }
+            }
+            return counts;
+        }
+
+        try {
+            if ( writeBehind || locationDocs ) {
+                try (StreamingViewResult view = openLocations()) {
+                    forEachLocation(view, (id, room) -> {
+                        if ( all || counts.containsKey(room) ) {
+                            counts.merge(room, 1L, Long::sum);
+                        }
+                    }, null);
+                }
+                return counts;
+            }
+
+            ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("byLocation")
+                    .reduce(true).group(true);
+            if ( !all ) {
+                query.keys(rooms);
+            }
+            for (ViewResult.Row row : db.queryView(query).getRows()) {
+                counts.put(row.getKey(), (long) row.getValueAsInt());
+            }
+            return counts;
+        } catch (DocumentNotFoundException e) {
+            throw countsUnavailable(e);
+        } catch (DbAccessException e) {
+            // 400 query_parse_error: byLocation is map only
+            if ( e.getMessage() != null && e.getMessage().contains("query_parse_error") ) {
+                throw countsUnavailable(e);
+            }
+            throw e;
+        }
+    }
+
+    private PlayerAccountModificationException countsUnavailable(DbAccessException e) {
+        Log.log(Level.WARNING, this, "Unable to count players, _design/players is out of date", e);
+        return new PlayerAccountModificationException(Response.Status.SERVICE_UNAVAILABLE,
+                "Room counts are not available",
+                "_design/players predates room counts: it needs the locationById view, and the _count reduce of byLocation");
+    }
+
+    /**
+     * Start reading the location of every player from the locationById view,
+     * without loading the documents. The rows are read by {@link #forEachLocation}.
+     * @return rows, to be closed by the caller
+     * @throws DocumentNotFoundException if the design document predates the view
+     */
+    public StreamingViewResult openLocations() {
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("locationById").includeDocs(false);
+        return db.queryForStreamingView(query);
+    }
+
+    /**
+     * Pass each row to the consumer as it arrives, with its current location
+     * (pending, or from its location document). Rows are handled in chunks
+     * of PLAYER_LOCATION_BULK_CHUNK, so memory use does not depend on the
+     * number of players.
+     * @param rows from {@link #openLocations()}
+     * @param consumer called for every player, with
+     *          {@link PlayerApplication#FIRST_ROOM} for players without a location
+     * @param output flushed after each chunk, so the first rows leave sooner. May be null.
+     */
+    public void forEachLocation(StreamingViewResult rows, LocationConsumer consumer, Flushable output) throws IOException {
+        Map<String, String> chunk = new LinkedHashMap<>();
+        for (ViewResult.Row row : rows) {
+            JsonNode value = row.getValueAsNode();
+            chunk.put(row.getId(), value == null || value.isNull() ? null : value.asText());
+            if ( chunk.size() >= bulkChunkSize ) {
+                acceptChunk(chunk, consumer);
+                if ( output != null ) {
+                    output.flush();
+                }
+            }
+        }
+        acceptChunk(chunk, consumer);
+    }
+
+    private void acceptChunk(Map<String, String> chunk, LocationConsumer consumer) throws IOException {
+        Map<String, PlayerLocationRecord> docs = locationDocs ? findLocationDocs(chunk.keySet()) : Collections.emptyMap();
+        for (Map.Entry<String, String> entry : chunk.entrySet()) {
+            Pending p = pending.get(entry.getKey());
+            PlayerLocationRecord doc = docs.get(entry.getKey());
+            String location = p != null ? p.location : doc != null ? doc.getLocation() : entry.getValue();
+            consumer.accept(entry.getKey(), room(location));
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Start reading all player documents: close the result when done.
+     * See {@link #forEachPlayer}.
+     */
+    public StreamingViewResult openPlayers() {
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("all").includeDocs(true);
+        return db.queryForStreamingView(query);
+    }
+
+    /**
+     * Pass each player to the consumer as it arrives, with its current
+     * location. As with {@link #forEachLocation}, rows are handled in chunks
+     * of PLAYER_LOCATION_BULK_CHUNK.
+     * @param rows from the iterator of {@link #openPlayers()}
+     * @param consumer called for every player
+     * @param output flushed after each chunk. May be null.
+     */
+    public void forEachPlayer(Iterator<ViewResult.Row> rows, PlayerConsumer consumer, Flushable output) throws IOException {
+        List<PlayerDbRecord> chunk = new ArrayList<>(bulkChunkSize);
+        while ( rows.hasNext() ) {
+            JsonNode doc = rows.next().getDocAsNode();
+            if ( doc == null || doc.isNull() ) {
+                continue; // deleted since the view was built
+            }
+            chunk.add(mapper.treeToValue(doc, PlayerDbRecord.class));
+            if ( chunk.size() >= bulkChunkSize ) {
+                acceptPlayers(chunk, consumer);
+                if ( output != null ) {
+                    output.flush();
+                }
+            }
+        }
+        acceptPlayers(chunk, consumer);
+    }
+
+    private void acceptPlayers(List<PlayerDbRecord> chunk, PlayerConsumer consumer) throws IOException {
+        for (PlayerDbRecord player : current(chunk)) {
+            consumer.accept(player);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Build the occupancy index with one streaming pass over the byLocation
+     * view. Moves made meanwhile (here, or seen on the changes feed) are
+     * applied to the index as they happen, and win over what the pass reads.
+     */
+    void buildIndex() {
+        indexBuilding = true;
+        ViewQuery query = new ViewQuery().designDocId("_design/players").viewName("byLocation")
+                .reduce(false).includeDocs(false);
+
+        // location documents win over player documents, whichever comes first
+        Map<String, String> fromLocationDocs = new HashMap<>();
+        int rows = 0;
+        try (StreamingViewResult result = db.queryForStreamingView(query)) {
+            for (ViewResult.Row row : result) {
+                String id = row.getId();
+                if ( id.startsWith(PlayerLocationRecord.ID_PREFIX) ) {
+                    if ( locationDocs ) {
+                        fromLocationDocs.put(id.substring(PlayerLocationRecord.ID_PREFIX.length()), row.getKey());
+                    }
+                } else if ( !movedDuringBuild.contains(id) && occupancy.roomOf(id) == null ) {
+                    occupancy.put(id, row.getKey());
+                }
+                rows++;
+            }
+        } catch (DocumentNotFoundException e) {
+            Log.log(Level.WARNING, this, "byLocation view not found, room occupancy index disabled");
+            indexBuilding = false;
+            return;
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Unable to build room occupancy index, using the byLocation view", e);
+            indexBuilding = false;
+            return;
+        }
+
+        for (Map.Entry<String, String> entry : fromLocationDocs.entrySet()) {
+            if ( !movedDuringBuild.contains(entry.getKey()) && occupancy.roomOf(entry.getKey()) != null ) {
+                occupancy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            occupancy.put(entry.getKey(), room(entry.getValue().location));
+        }
+
+        indexBuiltAt = System.currentTimeMillis();
+        indexReady = true;
+        indexBuilding = false;
+        movedDuringBuild.clear();
+        Log.log(Level.INFO, this, "Room occupancy index built from {0} rows: {1} players in {2} rooms",
+                rows, occupancy.getPlayerCount(), occupancy.getRoomCount());
+    }
+
+    /**
+     * @param listener told about moves applied here, and moves made by other
+     *          instances as they are seen on the changes feed (once each:
+     *          our own writes coming back on the feed change nothing)
+     */
+    public void addOccupancyListener(OccupancyListener listener) {
+        occupancyListeners.add(listener);
+    }
+
+    public void removeOccupancyListener(OccupancyListener listener) {
+        occupancyListeners.remove(listener);
+    }
+
+    private void indexMove(String id, String location) {
+        if ( indexBuilding ) {
+            movedDuringBuild.add(id);
+        }
+        String to = room(location);
+        String from = occupancy.put(id, to);
+        if ( !to.equals(from) ) {
+            notifyMove(id, from, to);
+        }
+    }
+
+    private void indexRemove(String id) {
+        if ( indexBuilding ) {
+            movedDuringBuild.add(id);
+        }
+        String from = occupancy.remove(id);
+        if ( from != null ) {
+            notifyMove(id, from, null);
+        }
+    }
+
+    private void notifyMove(String id, String from, String to) {
+        for (OccupancyListener listener : occupancyListeners) {
+            try {
+                listener.onMove(id, from, to);
+            } catch (RuntimeException e) {
+                Log.log(Level.SEVERE, this, "Unexpected error reporting move of " + id, e);
+            }
+        }
+    }
+
+    private static String room(String location) {
+        return location == null ? PlayerApplication.FIRST_ROOM : location;
+    }
+
+    /**
+     * Keep the occupancy index, and cached location documents, in step with
+     * changes made by other instances.
+     */
+    void onChange(DocumentChange change, PlayerDbRecord record) {
+        String id = change.getId();
+        if ( id.startsWith(PlayerLocationRecord.ID_PREFIX) ) {
+            String playerId = id.substring(PlayerLocationRecord.ID_PREFIX.length());
+            if ( locationDocs ) {
+                locationDocChanged(playerId, record == null ? null : record.getLocation());
+            }
+            // location documents are only deleted with their player
+            if ( locationDocs && record != null && occupancyIndex ) {
+                if ( !pending.containsKey(playerId) ) {
+                    indexMove(playerId, record.getLocation());
+                }
+            }
+            return;
+        }
+
+        if ( !occupancyIndex ) {
+            return;
+        }
+        if ( record == null || record.getName() == null ) {
+            if ( change.isDeleted() ) {
+                indexRemove(id);
+            }
+        } else if ( pending.containsKey(id) ) {
+            // our own move is newer than what has been written
+        } else if ( !locationDocs ) {
+            indexMove(id, record.getLocation());
+        } else if ( occupancy.roomOf(id) == null ) {
+            // with location documents, the player document only has the
+            // location of new players: anything else is out of date
+            occupancy.put(id, room(record.getLocation()));
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.log(Level.FINEST, this, "LOCATION FLUSH THREAD STARTED");
+        boolean interrupted = false;
+
+        while (keepGoing) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.log(Level.WARNING, this, "Error writing player locations, will retry", e);
+            }
+        }
+
+        Log.log(Level.FINEST, this, "LOCATION FLUSH THREAD STOPPED");
+
+        // reset interrupted flag when thread asked to stop
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write pending locations to the database, in batches, until there are
+     * none left (or a batch could not be written).
+     */
+    void flush() {
+        while ( !pending.isEmpty() ) {
+            if ( flushBatch() == 0 ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of locations written
+     */
+    int flushBatch() {
+        List<String> ids = new ArrayList<>();
+        for (String id : pending.keySet()) {
+            ids.add(id);
+            if ( ids.size() >= flushBatchSize ) {
+                break;
+            }
+        }
+        if ( ids.isEmpty() ) {
+            return 0;
+        }
+
+        // player id -> pending location being written, document id -> player id
+        Map<String, Pending> written = new HashMap<>();
+        Map<String, String> playerIds = new HashMap<>();
+        List<Object> updates = locationDocs
+                ? locationDocUpdates(ids, written, playerIds)
+                : playerDocUpdates(ids, written, playerIds);
+
+        // players that have been deleted since they moved
+        Map<String, Long> settled = new HashMap<>();
+        for (String id : ids) {
+            if ( !written.containsKey(id) ) {
+                Pending p = pending.remove(id);
+                if ( p != null ) {
+                    settled.put(id, p.seq);
+                }
+            }
+        }
+        if ( updates.isEmpty() ) {
+            journal.flushed(settled);
+            return 0;
+        }
+
+        Set<String> failed = new HashSet<>();
+        for (DocumentOperationResult error : db.executeBulk(updates)) {
+            // most likely a conflict with a profile update: try again next time
+            Log.log(Level.FINER, this, "Location of {0} not written: {1}", error.getId(), error.getError());
+            failed.add(playerIds.get(error.getId()));
+        }
+
+        int count = 0;
+        for (Map.Entry<String, Pending> entry : written.entrySet()) {
+            if ( !failed.contains(entry.getKey()) ) {
+                settled.put(entry.getKey(), entry.getValue().seq);
+                if ( locationDocs ) {
+                    // before the pending move goes, so reads never see the old location
+                    locationDocChanged(entry.getKey(), entry.getValue().location);
+                } else {
+                    cache.evict(entry.getKey());
+                }
+                // only if the player has not moved again in the meanwhile
+                pending.remove(entry.getKey(), entry.getValue());
+                count++;
+            }
+        }
+        journal.flushed(settled);
+        flushed.add(count);
+        return count;
+    }
+
+    private List<Object> playerDocUpdates(List<String> ids, Map<String, Pending> written, Map<String, String> playerIds) {
+        // current documents (not the cache: we need their latest revision)
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        query.setIgnoreNotFound(true);
+
+        List<Object> updates = new ArrayList<>();
+        for (PlayerDbRecord record : db.queryView(query, PlayerDbRecord.class)) {
+            Pending p = record == null ? null : pending.get(record.getId());
+            if ( p != null ) {
+                written.put(record.getId(), p);
+                playerIds.put(record.getId(), record.getId());
+                record.setLocation(p.location);
+                updates.add(record);
+            }
+        }
+        return updates;
+    }
+
+    private List<Object> locationDocUpdates(List<String> ids, Map<String, Pending> written, Map<String, String> playerIds) {
+        Map<String, PlayerLocationRecord> docs = new HashMap<>(findLocationDocs(ids));
+
+        List<Object> updates = new ArrayList<>();
+        for (String id : ids) {
+            Pending p = pending.get(id);
+            if ( p != null ) {
+                PlayerLocationRecord doc = docs.computeIfAbsent(id, PlayerLocationRecord::new);
+                written.put(id, p);
+                playerIds.put(doc.getId(), id);
+                doc.setLocation(p.location);
+                updates.add(doc);
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Stop the flush thread, and write whatever is still pending.
+     */
+    @PreDestroy
+    public void stop() {
+        keepGoing = false;
+
+        if ( thread != null && thread.isAlive() ) {
+            Log.log(Level.FINEST, this, "Stopping location flush thread");
+            thread.interrupt();
+            try {
+                thread.join(flushInterval * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if ( !pending.isEmpty() ) {
+            Log.log(Level.INFO, this, "Writing {0} pending player locations", pending.size());
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.log(Level.SEVERE, this, "Unable to write pending player locations", e);
+            }
+        }
+    }
+
+    /**
+     * @return a number that changes whenever a move is held in memory
+     *          (write-behind): such moves do not change the database
+     *          sequence until they are flushed.
+     */
+    public long getPendingVersion() {
+        return pendingVersion.get();
+    }
+
+    @Gauge(name = "playerLocations_pending",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getPending() {
+        return pending.size();
+    }
+
+    @Gauge(name = "playerLocations_coalesced",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Gauge(name = "playerLocations_flushed",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getFlushed() {
+        return flushed.sum();
+    }
+
+    @Gauge(name = "playerLocations_lockStripes",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getLockStripes() {
+        return moveLocks.size();
+    }
+
+    @Gauge(name = "playerLocations_lockContended",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getLockContended() {
+        return moveLocks.getContended();
+    }
+
+    @Gauge(name = "playerLocations_lockMaxStripeContended",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getLockMaxStripeContended() {
+        return moveLocks.getMaxContended();
+    }
+
+    @Gauge(name = "playerLocations_lockWait",
+        unit = MetricUnits.MILLISECONDS,
+        tags = "label=playerLocations")
+    public long getLockWait() {
+        return moveLocks.getWaitMillis();
+    }
+
+    @Gauge(name = "playerLocations_indexedPlayers",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getIndexedPlayers() {
+        return occupancy.getPlayerCount();
+    }
+
+    @Gauge(name = "playerLocations_indexedRooms",
+        unit = MetricUnits.NONE,
+        tags = "label=playerLocations")
+    public long getIndexedRooms() {
+        return occupancy.getRoomCount();
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.gameontext.player.utils.CompressingOutputStream;
+import org.gameontext.player.utils.CompressingOutputStream.Encoding;
+import org.gameontext.player.utils.Env;
+
+/**
+ * Compresses response bodies larger than PLAYER_COMPRESS_MIN_BYTES with gzip
+ * or deflate, as allowed by the request's Accept-Encoding header. Smaller
+ * responses (a single player, say) are not worth the CPU.
+ */
+@Provider
+public class ResponseCompression implements ContainerRequestFilter, WriterInterceptor {
+
+    /** request property holding the negotiated encoding */
+    static final String ENCODING = "player.compression";
+
+    private final int threshold = Env.getInt("PLAYER_COMPRESS_MIN_BYTES", 1024);
+
+    /**
+     * Decide on the encoding while the request headers are at hand:
+     * asynchronous responses are written from another thread.
+     */
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        Encoding encoding = negotiate(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if ( encoding != null ) {
+            request.setProperty(ENCODING, encoding);
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        Object encoding = context.getProperty(ENCODING);
+        MultivaluedMap<String, Object> headers = context.getHeaders();
+        if ( !(encoding instanceof Encoding) || headers.containsKey(HttpHeaders.CONTENT_ENCODING) ) {
+            context.proceed();
+            return;
+        }
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        Encoding e = (Encoding) encoding;
+        CompressingOutputStream out = new CompressingOutputStream(context.getOutputStream(), e, threshold, () -> {
+            headers.putSingle(HttpHeaders.CONTENT_ENCODING, e.name);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+        });
+        context.setOutputStream(out);
+        try {
+            context.proceed();
+            out.finish();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * @param acceptEncoding Accept-Encoding request header
+     * @return gzip if acceptable, otherwise deflate if acceptable, or null
+     */
+    static Encoding negotiate(String acceptEncoding) {
+        if ( acceptEncoding == null || acceptEncoding.isEmpty() ) {
+            return null;
+        }
+        float gzip = 0, deflate = 0, any = 0;
+        boolean gzipListed = false, deflateListed = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            float q = quality(parts);
+            switch (name) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    gzipListed = true;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    deflateListed = true;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if ( !gzipListed ) {
+            gzip = any;
+        }
+        if ( !deflateListed ) {
+            deflate = any;
+        }
+        if ( gzip > 0 && gzip >= deflate ) {
+            return Encoding.GZIP;
+        }
+        return deflate > 0 ? Encoding.DEFLATE : null;
+    }
+
+    private static float quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if ( param.startsWith("q=") ) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
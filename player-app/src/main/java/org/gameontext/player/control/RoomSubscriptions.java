@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.entity.OccupancyEvent;
+import org.gameontext.player.utils.Env;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Pushes join and leave events to clients subscribed to rooms, so they do
+ * not have to poll /locations.
+ *
+ * Every subscriber has a bounded buffer (PLAYER_SUBSCRIBER_BUFFER events),
+ * and at most one send in flight. A subscriber that falls a full buffer
+ * behind is disconnected rather than slowing down moves, or holding
+ * memory: it can reconnect and read /locations to catch up.
+ *
+ * There are at most PLAYER_MAX_SUBSCRIBERS subscribers, each subscribed to
+ * at most PLAYER_SUBSCRIBER_ROOMS rooms.
+ */
+@ApplicationScoped
+public class RoomSubscriptions implements PlayerLocationStore.OccupancyListener {
+
+    /** Where events for a subscriber go: a WebSocket session, usually */
+    public interface Sink {
+        /**
+         * Send asynchronously.
+         * @param text message
+         * @param done to be called once the message has been sent (or failed)
+         */
+        void send(String text, Runnable done);
+
+        /**
+         * @param reason why the subscriber is being dropped
+         */
+        void close(String reason);
+    }
+
+    /** A connected client, and the rooms it is interested in */
+    public class Subscriber {
+        final Sink sink;
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        final BlockingQueue<String> buffer = new ArrayBlockingQueue<>(bufferSize);
+        final AtomicBoolean sending = new AtomicBoolean();
+        volatile boolean closed = false;
+
+        Subscriber(Sink sink) {
+            this.sink = sink;
+        }
+
+        void offer(String text) {
+            if ( closed ) {
+                return;
+            }
+            if ( !buffer.offer(text) ) {
+                slowConsumers.increment();
+                Log.log(Level.FINE, RoomSubscriptions.this, "Dropping slow room subscriber");
+                unsubscribe(this);
+                sink.close("Too far behind, reconnect and read /locations to catch up");
+                return;
+            }
+            sendNext();
+        }
+
+        private void sendNext() {
+            // one send in flight at a time: the next is sent from the completion of the last
+            while ( !closed && !buffer.isEmpty() && sending.compareAndSet(false, true) ) {
+                String text = buffer.poll();
+                if ( text == null ) {
+                    sending.set(false);
+                    continue;
+                }
+                sink.send(text, () -> {
+                    sent.increment();
+                    sending.set(false);
+                    sendNext();
+                });
+                return;
+            }
+        }
+    }
+
+    @Inject
+    protected PlayerLocationStore locations;
+
+    private final int bufferSize = Math.max(1, Env.getInt("PLAYER_SUBSCRIBER_BUFFER", 100));
+    private final int maxSubscribers = Env.getInt("PLAYER_MAX_SUBSCRIBERS", 1000);
+    final int maxRooms = Math.max(1, Env.getInt("PLAYER_SUBSCRIBER_ROOMS", 100));
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** room id -> subscribers */
+    private final ConcurrentHashMap<String, Set<Subscriber>> byRoom = new ConcurrentHashMap<>();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    /** reserved before a subscriber is added, so the limit holds under concurrent connects */
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        locations.addOccupancyListener(this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        locations.removeOccupancyListener(this);
+        for (Subscriber subscriber : subscribers) {
+            unsubscribe(subscriber);
+            subscriber.sink.close("Server stopping");
+        }
+    }
+
+    /**
+     * @param sink where to send events
+     * @return the new subscriber, or null if there are too many already
+     */
+    public Subscriber connect(Sink sink) {
+        if ( connected.incrementAndGet() > maxSubscribers ) {
+            connected.decrementAndGet();
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(sink);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * @return false if that would take the subscriber over PLAYER_SUBSCRIBER_ROOMS rooms:
+     *          the rooms past the limit are not subscribed to
+     */
+    public boolean subscribe(Subscriber subscriber, Collection<String> rooms) {
+        synchronized (subscriber) {
+            for (String room : rooms) {
+                if ( subscriber.closed ) {
+                    return true;
+                }
+                if ( subscriber.rooms.contains(room) ) {
+                    continue;
+                }
+                if ( subscriber.rooms.size() >= maxRooms ) {
+                    return false;
+                }
+                subscriber.rooms.add(room);
+                // added within the map operation: a concurrent unsubscribe can not
+                // remove the set between its lookup and the add
+                byRoom.compute(room, (r, set) -> {
+                    if ( set == null ) {
+                        set = ConcurrentHashMap.newKeySet();
+                    }
+                    set.add(subscriber);
+                    return set;
+                });
+            }
+        }
+        return true;
+    }
+
+    public void unsubscribe(Subscriber subscriber, Collection<String> rooms) {
+        for (String room : rooms) {
+            if ( subscriber.rooms.remove(room) ) {
+                byRoom.computeIfPresent(room, (r, set) -> {
+                    set.remove(subscriber);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+    }
+
+    /**
+     * Forget a subscriber (e.g. when the connection closes).
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (subscriber) {
+            subscriber.closed = true;
+        }
+        if ( subscribers.remove(subscriber) ) {
+            connected.decrementAndGet();
+        }
+        unsubscribe(subscriber, subscriber.rooms);
+        subscriber.buffer.clear();
+    }
+
+    @Override
+    public void onMove(String playerId, String from, String to) {
+        if ( from != null ) {
+            publish(new OccupancyEvent(OccupancyEvent.LEAVE, from, playerId));
+        }
+        if ( to != null ) {
+            publish(new OccupancyEvent(OccupancyEvent.JOIN, to, playerId));
+        }
+    }
+
+    private void publish(OccupancyEvent event) {
+        Set<Subscriber> interested = byRoom.get(event.getSiteId());
+        if ( interested == null || interested.isEmpty() ) {
+            return;
+        }
+        String text;
+        try {
+            text = mapper.writeValueAsString(event);
+        } catch (JsonProcessingException e) {
+            Log.log(Level.WARNING, this, "Unable to write occupancy event", e);
+            return;
+        }
+        for (Subscriber subscriber : interested) {
+            subscriber.offer(text);
+        }
+    }
+
+    @Gauge(name = "roomSubscriptions_subscribers",
+        unit = MetricUnits.NONE,
+        tags = "label=roomSubscriptions")
+    public long getSubscribers() {
+        return subscribers.size();
+    }
+
+    @Gauge(name = "roomSubscriptions_sent",
+        unit = MetricUnits.NONE,
+        tags = "label=roomSubscriptions")
+    public long getSent() {
+        return sent.sum();
+    }
+
+    @Gauge(name = "roomSubscriptions_slowConsumers",
+        unit = MetricUnits.NONE,
+        tags = "label=roomSubscriptions")
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import java.util.List;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Move many players at once: everyone in one room to another room,
+ * or an explicit list of moves.
+ */
+@ApiModel(description = "Either fromLocation and toLocation, or a list of moves")
+public class BulkMoveRequest {
+
+    @ApiModelProperty(
+            value = "move every player in this room",
+            example = "room_id_1")
+    protected String fromLocation;
+
+    @ApiModelProperty(
+            value = "room the players in fromLocation are moved to",
+            example = "firstroom")
+    protected String toLocation;
+
+    @ApiModelProperty(value = "explicit moves, used when fromLocation is not set")
+    protected List<PlayerMove> moves;
+
+    @ApiModelProperty(
+            value = "uuid of request origin (not stored)",
+            example = "origin_uuid")
+    protected String origin;
+
+    public String getFromLocation() {
+        return fromLocation;
+    }
+
+    public void setFromLocation(String fromLocation) {
+        this.fromLocation = fromLocation;
+    }
+
+    public String getToLocation() {
+        return toLocation;
+    }
+
+    public void setToLocation(String toLocation) {
+        this.toLocation = toLocation;
+    }
+
+    public List<PlayerMove> getMoves() {
+        return moves;
+    }
+
+    public void setMoves(List<PlayerMove> moves) {
+        this.moves = moves;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+}
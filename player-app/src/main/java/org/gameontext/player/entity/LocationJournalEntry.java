@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * One line of the player movement journal: a move, or a marker recording
+ * that a (write-behind) move has been written to the database.
+ */
+@ApiModel(description = "A player move")
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LocationJournalEntry {
+
+    @ApiModelProperty(value = "player id", example = "twitter:12345")
+    protected String playerId;
+
+    @ApiModelProperty(value = "previous location", example = "room_id_1")
+    protected String oldLocation;
+
+    @ApiModelProperty(value = "new location", example = "room_id_2")
+    protected String newLocation;
+
+    @ApiModelProperty(value = "uuid of request origin", example = "origin_uuid")
+    protected String origin;
+
+    @ApiModelProperty(value = "time of the move, in milliseconds since the epoch", example = "1530000000000")
+    protected long timestamp;
+
+    /** journal sequence number: orders entries across segments */
+    @ApiModelProperty(hidden = true)
+    protected Long seq;
+
+    /** true if the move was not written to the database when it was journaled */
+    @ApiModelProperty(hidden = true)
+    protected Boolean pending;
+
+    /** for markers: sequence number of the move that has been written */
+    @ApiModelProperty(hidden = true)
+    protected Long flushed;
+
+    public LocationJournalEntry() {}
+
+    public LocationJournalEntry(String playerId, LocationChange change) {
+        this.playerId = playerId;
+        this.oldLocation = change.getOldLocation();
+        this.newLocation = change.getNewLocation();
+        this.origin = change.getOrigin();
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * @param playerId player id
+     * @param flushed sequence number of the move that has been written
+     * @return marker entry
+     */
+    public static LocationJournalEntry flushed(String playerId, long flushed) {
+        LocationJournalEntry marker = new LocationJournalEntry();
+        marker.playerId = playerId;
+        marker.flushed = flushed;
+        return marker;
+    }
+
+    /**
+     * @return a copy with only the move itself, as returned by the history query
+     */
+    public LocationJournalEntry publicCopy() {
+        LocationJournalEntry copy = new LocationJournalEntry();
+        copy.playerId = playerId;
+        copy.oldLocation = oldLocation;
+        copy.newLocation = newLocation;
+        copy.origin = origin;
+        copy.timestamp = timestamp;
+        return copy;
+    }
+
+    @JsonIgnore
+    public boolean isMarker() {
+        return flushed != null;
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
+    public String getOldLocation() {
+        return oldLocation;
+    }
+
+    public void setOldLocation(String oldLocation) {
+        this.oldLocation = oldLocation;
+    }
+
+    public String getNewLocation() {
+        return newLocation;
+    }
+
+    public void setNewLocation(String newLocation) {
+        this.newLocation = newLocation;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public Boolean getPending() {
+        return pending;
+    }
+
+    public void setPending(Boolean pending) {
+        this.pending = pending;
+    }
+
+    public Long getFlushed() {
+        return flushed;
+    }
+
+    public void setFlushed(Long flushed) {
+        this.flushed = flushed;
+    }
+}
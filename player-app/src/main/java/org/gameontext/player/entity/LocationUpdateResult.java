@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * Response of the location update handler in _design/players.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LocationUpdateResult {
+
+    /** true if the location was changed */
+    protected boolean ok;
+
+    /** true if there is no such player */
+    protected boolean missing;
+
+    /** the player location after the request (new or current) */
+    protected String location;
+
+    /** the updated player document, present if ok is true */
+    protected PlayerDbRecord player;
+
+    public boolean isOk() {
+        return ok;
+    }
+
+    public void setOk(boolean ok) {
+        this.ok = ok;
+    }
+
+    public boolean isMissing() {
+        return missing;
+    }
+
+    public void setMissing(boolean missing) {
+        this.missing = missing;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public PlayerDbRecord getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(PlayerDbRecord player) {
+        this.player = player;
+    }
+}
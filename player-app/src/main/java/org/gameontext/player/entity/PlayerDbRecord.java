@@ -32,6 +32,9 @@ public class PlayerDbRecord {
 
     private static final long serialVersionUID = 1L;
 
+    /** Api key of players that have been banned: never matches a shared secret */
+    public static final String ACCESS_DENIED = "ACCESS_DENIED";
+
     /** Player account/record id */
     @JsonProperty("_id")
     @ApiModelProperty(
@@ -124,6 +127,23 @@ public class PlayerDbRecord {
         this.location = null;
     }
 
+    /**
+     * @return a copy of this record with the given location
+     */
+    @JsonIgnore
+    public PlayerDbRecord withLocation(String location) {
+        PlayerDbRecord copy = new PlayerDbRecord();
+        copy.id = this.id;
+        copy.rev = this.rev;
+        copy.name = this.name;
+        copy.favoriteColor = this.favoriteColor;
+        copy.story = this.story;
+        copy.playerMode = this.playerMode;
+        copy.apiKey = this.apiKey;
+        copy.location = location;
+        return copy;
+    }
+
     public String getApiKey() {
         return apiKey;
     }
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.gameontext.player.PlayerApplication;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A projection of the player properties returned to the caller (the fields
+ * query parameter). Writes the selected properties of a {@link PlayerDbRecord}
+ * with the same names and shape as {@link PlayerResponse}, without creating
+ * the intermediate response objects.
+ */
+public class PlayerFields {
+
+    public enum Field {
+        ID("_id"),
+        REV("_rev"),
+        NAME("name"),
+        FAVORITE_COLOR("favoriteColor"),
+        LOCATION("location"),
+        CREDENTIALS("credentials"),
+        STORY("story"),
+        PLAYER_MODE("playerMode");
+
+        final String property;
+
+        Field(String property) {
+            this.property = property;
+        }
+
+        static Field fromProperty(String property) {
+            for (Field f : values()) {
+                if ( f.property.equals(property) ) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field: " + property);
+        }
+    }
+
+    public static final PlayerFields ALL = new PlayerFields(EnumSet.allOf(Field.class));
+
+    private final Set<Field> fields;
+
+    private PlayerFields(Set<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param fields comma separated list of property names, e.g. "name,location".
+     *          The player id is always included.
+     * @return the projection, or {@link #ALL} if fields is null or empty
+     * @throws IllegalArgumentException if an unknown property is named
+     */
+    public static PlayerFields parse(String fields) {
+        if ( fields == null || fields.trim().isEmpty() ) {
+            return ALL;
+        }
+
+        Set<Field> selected = EnumSet.of(Field.ID);
+        for (String property : fields.split(",")) {
+            if ( !property.trim().isEmpty() ) {
+                selected.add(Field.fromProperty(property.trim()));
+            }
+        }
+        return new PlayerFields(selected);
+    }
+
+    public boolean includes(Field field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * Write the selected properties of the player as a JSON object.
+     * As with PlayerResponse, empty values are omitted.
+     * @param withCredentials false if credentials must not be written, whether selected or not
+     */
+    public void write(JsonGenerator gen, PlayerDbRecord p, boolean withCredentials) throws IOException {
+        gen.writeStartObject();
+        writeString(gen, Field.ID, p.getId());
+        writeString(gen, Field.REV, p.getRev());
+        writeString(gen, Field.NAME, p.getName());
+        writeString(gen, Field.FAVORITE_COLOR, p.getFavoriteColor());
+
+        if ( includes(Field.LOCATION) ) {
+            gen.writeObjectFieldStart(Field.LOCATION.property);
+            gen.writeStringField("location", p.getLocation() == null ? PlayerApplication.FIRST_ROOM : p.getLocation());
+            gen.writeEndObject();
+        }
+
+        if ( withCredentials && includes(Field.CREDENTIALS) && !isEmpty(p.getApiKey()) ) {
+            gen.writeObjectFieldStart(Field.CREDENTIALS.property);
+            gen.writeStringField("sharedSecret", p.getApiKey());
+            gen.writeEndObject();
+        }
+
+        writeString(gen, Field.STORY, p.getStory());
+        writeString(gen, Field.PLAYER_MODE, p.getPlayerMode());
+        gen.writeEndObject();
+    }
+
+    private void writeString(JsonGenerator gen, Field field, String value) throws IOException {
+        if ( includes(field) && !isEmpty(value) ) {
+            gen.writeStringField(field.property, value);
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
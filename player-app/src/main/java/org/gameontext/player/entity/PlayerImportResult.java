@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Outcome of one player of a bulk import.
+ */
+@ApiModel(description = "Outcome of importing a player")
+public class PlayerImportResult {
+
+    public static final String CREATED = "created";
+    public static final String CONFLICT = "conflict";
+    public static final String INVALID = "invalid";
+
+    @ApiModelProperty(value = "player id", example = "twitter:12345")
+    protected String playerId;
+
+    @ApiModelProperty(value = "created, conflict (a player with this id already exists), or invalid",
+            example = CREATED)
+    protected String status;
+
+    @ApiModelProperty(value = "why the player was not created", example = "A name is required")
+    protected String message;
+
+    /** the created player, for the CREATE event */
+    @JsonIgnore
+    protected PlayerDbRecord player;
+
+    public PlayerImportResult() {}
+
+    public PlayerImportResult(String playerId, String status, String message) {
+        this.playerId = playerId;
+        this.status = status;
+        this.message = message;
+    }
+
+    @JsonIgnore
+    public boolean isCreated() {
+        return CREATED.equals(status);
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    @JsonIgnore
+    public PlayerDbRecord getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(PlayerDbRecord player) {
+        this.player = player;
+    }
+}
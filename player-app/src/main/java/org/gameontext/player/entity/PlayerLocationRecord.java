@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The location of a player, stored as its own small document (loc:&lt;player id&gt;)
+ * so that moves do not conflict with changes to the player's profile.
+ */
+@JsonInclude(Include.NON_EMPTY)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PlayerLocationRecord {
+
+    public static final String ID_PREFIX = "loc:";
+    public static final String TYPE = "location";
+
+    @JsonProperty("_id")
+    protected String id;
+
+    @JsonProperty("_rev")
+    protected String rev;
+
+    protected String type = TYPE;
+
+    protected String playerId;
+
+    protected String location;
+
+    @JsonCreator
+    public PlayerLocationRecord() {}
+
+    public PlayerLocationRecord(String playerId) {
+        this.id = docId(playerId);
+        this.playerId = playerId;
+    }
+
+    /**
+     * @param playerId player id
+     * @return id of the location document for the player
+     */
+    public static String docId(String playerId) {
+        return ID_PREFIX + playerId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRev() {
+        return rev;
+    }
+
+    public void setRev(String rev) {
+        this.rev = rev;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerLocation [id=" + id + ", revision=" + rev + ", location=" + location + "]";
+    }
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * A location change for a given player, as part of a bulk move.
+ */
+@ApiModel(description = "Location change for one player")
+public class PlayerMove extends LocationChange {
+
+    @ApiModelProperty(
+            value = "player id",
+            example = "twitter:12345",
+            required = true)
+    protected String playerId;
+
+    public PlayerMove() {}
+
+    public PlayerMove(String playerId, String oldLocation, String newLocation, String origin) {
+        this.playerId = playerId;
+        this.oldLocation = oldLocation;
+        this.newLocation = newLocation;
+        this.origin = origin;
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+}
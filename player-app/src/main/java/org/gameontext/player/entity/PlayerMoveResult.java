@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Outcome of one move of a bulk move.
+ */
+@ApiModel(description = "Outcome of a move")
+public class PlayerMoveResult {
+
+    public static final String OK = "ok";
+    public static final String CONFLICT = "conflict";
+    public static final String NOT_FOUND = "not_found";
+
+    @ApiModelProperty(value = "player id", example = "twitter:12345")
+    protected String playerId;
+
+    @ApiModelProperty(value = "ok, conflict (player was not in the expected location, or changed concurrently), or not_found",
+            example = OK)
+    protected String status;
+
+    @ApiModelProperty(value = "player location after the request (new or current)", example = "firstroom")
+    protected String location;
+
+    /** the moved player, for the UPDATE_LOCATION event */
+    @JsonIgnore
+    protected PlayerDbRecord player;
+
+    public PlayerMoveResult() {}
+
+    public PlayerMoveResult(String playerId, String status, String location) {
+        this.playerId = playerId;
+        this.status = status;
+        this.location = location;
+    }
+
+    @JsonIgnore
+    public boolean isOk() {
+        return OK.equals(status);
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    @JsonIgnore
+    public PlayerDbRecord getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(PlayerDbRecord player) {
+        this.player = player;
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When each id last changed, so that a value read from the database can be
+ * checked for a change to the same id while it was being read (and not
+ * cached if there was one), without refusing to cache everything else.
+ *
+ * Bounded: the oldest ids are forgotten first, and an id that has been
+ * forgotten counts as changed as recently as the newest forgotten one.
+ */
+public class ChangeStamps {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    /** Newest stamp forgotten so far */
+    private long floor;
+
+    /** id -> stamp of its last change, oldest change first */
+    private final Map<String, Long> stamps;
+
+    public ChangeStamps(int maxEntries) {
+        int max = Math.max(1, maxEntries);
+        this.stamps = new LinkedHashMap<String, Long>(64, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if ( size() > max ) {
+                    floor = Math.max(floor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the current stamp: take it before reading
+     */
+    public long now() {
+        return clock.get();
+    }
+
+    /**
+     * Note a change to the given id.
+     */
+    public synchronized void changed(String id) {
+        // re-inserted, to keep the map ordered by stamp
+        stamps.remove(id);
+        stamps.put(id, clock.incrementAndGet());
+    }
+
+    /**
+     * @param id the id that was read
+     * @param stamp from {@link #now()}, taken before reading
+     * @return true if the id may have changed since the stamp was taken
+     */
+    public synchronized boolean changedSince(String id, long stamp) {
+        Long last = stamps.get(id);
+        return (last == null ? floor : last) > stamp;
+    }
+}
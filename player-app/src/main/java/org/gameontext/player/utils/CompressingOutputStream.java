@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what is written to it, but only once more than a threshold
+ * has been written: smaller output is passed through as is, when the
+ * stream is finished.
+ *
+ * Deflaters hold native memory, so they are pooled rather than created
+ * (and left to the finalizer) for every response.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+    public enum Encoding {
+        GZIP("gzip", true),
+        DEFLATE("deflate", false);
+
+        public final String name;
+
+        /** gzip wraps raw deflate data with its own header and trailer */
+        final boolean gzip;
+
+        final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        Encoding(String name, boolean gzip) {
+            this.name = name;
+            this.gzip = gzip;
+        }
+
+        Deflater acquire() {
+            Deflater deflater = pool.poll();
+            return deflater != null ? deflater : new Deflater(LEVEL, gzip);
+        }
+
+        void release(Deflater deflater) {
+            deflater.reset();
+            if ( !pool.offer(deflater) ) {
+                deflater.end();
+            }
+        }
+    }
+
+    static final int POOL_SIZE = Env.getInt("PLAYER_COMPRESS_POOL", 32);
+    static final int LEVEL = Env.getInt("PLAYER_COMPRESS_LEVEL", Deflater.BEST_SPEED);
+
+    /** Same header as java.util.zip.GZIPOutputStream: no name, no timestamp */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final OutputStream out;
+    private final Encoding encoding;
+    private final Runnable onCompress;
+
+    private final byte[] buffer;
+    private int count = 0;
+
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] chunk;
+    private boolean finished = false;
+
+    /**
+     * @param out where the (possibly compressed) bytes go
+     * @param encoding how to compress
+     * @param threshold no compression unless more bytes than this are written
+     * @param onCompress called before the first compressed byte is written,
+     *          e.g. to set the Content-Encoding header
+     */
+    public CompressingOutputStream(OutputStream out, Encoding encoding, int threshold, Runnable onCompress) {
+        this.out = out;
+        this.encoding = encoding;
+        this.onCompress = onCompress;
+        this.buffer = new byte[Math.max(0, threshold)];
+    }
+
+    public boolean isCompressing() {
+        return deflater != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ( finished ) {
+            throw new IOException("Stream finished");
+        }
+        if ( deflater == null ) {
+            if ( count + len <= buffer.length ) {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            start();
+        }
+        deflate(b, off, len);
+    }
+
+    private void start() throws IOException {
+        onCompress.run();
+        deflater = encoding.acquire();
+        chunk = new byte[8192];
+        if ( encoding.gzip ) {
+            out.write(GZIP_HEADER);
+        }
+        deflate(buffer, 0, count);
+        count = 0;
+    }
+
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        if ( len == 0 ) {
+            return;
+        }
+        if ( encoding.gzip ) {
+            crc.update(b, off, len);
+        }
+        deflater.setInput(b, off, len);
+        while ( !deflater.needsInput() ) {
+            drain(Deflater.NO_FLUSH);
+        }
+    }
+
+    private int drain(int flush) throws IOException {
+        int n = deflater.deflate(chunk, 0, chunk.length, flush);
+        if ( n > 0 ) {
+            out.write(chunk, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * Small output stays buffered until it is finished. Once compressing,
+     * everything written so far is sent on.
+     */
+    @Override
+    public void flush() throws IOException {
+        if ( deflater != null && !finished ) {
+            while ( drain(Deflater.SYNC_FLUSH) == chunk.length ) {
+                // more to come
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Write whatever is left (compressed or not), without closing the
+     * underlying stream.
+     */
+    public void finish() throws IOException {
+        if ( finished ) {
+            return;
+        }
+        try {
+            if ( deflater == null ) {
+                out.write(buffer, 0, count);
+            } else {
+                deflater.finish();
+                while ( !deflater.finished() ) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                if ( encoding.gzip ) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE((int) deflater.getBytesRead());
+                }
+            }
+            out.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Give the deflater back without writing anything more: for when the
+     * response failed part way.
+     */
+    public void release() {
+        finished = true;
+        if ( deflater != null ) {
+            encoding.release(deflater);
+            deflater = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
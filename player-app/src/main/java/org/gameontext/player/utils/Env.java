@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.util.logging.Level;
+
+/**
+ * Trivial helpers for reading tuning values from environment variables,
+ * falling back to a default when the variable is unset or unparseable.
+ */
+public class Env {
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if ( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if ( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.log(Level.WARNING, null, "Ignoring invalid value for {0}: {1}", name, value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getenv(name);
+        if ( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
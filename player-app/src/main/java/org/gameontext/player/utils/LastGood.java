@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent successful answers to a bounded number of requests,
+ * least recently used first out, to fall back on when the database is not
+ * answering.
+ */
+public class LastGood<K, V> {
+
+    public static class Entry<V> {
+        final V value;
+        final long capturedAt;
+
+        Entry(V value, long capturedAt) {
+            this.value = value;
+            this.capturedAt = capturedAt;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return seconds since the value was stored
+         */
+        public long getAge() {
+            return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - capturedAt);
+        }
+    }
+
+    private final Map<K, Entry<V>> entries;
+
+    public LastGood(int maxEntries) {
+        int max = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the last value stored for the key, or null
+     */
+    public synchronized Entry<V> get(K key) {
+        return entries.get(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
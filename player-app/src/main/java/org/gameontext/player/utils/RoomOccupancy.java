@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Which players are in which room. Safe for concurrent use: each player,
+ * and each room, is updated atomically.
+ */
+public class RoomOccupancy {
+
+    /** player id -> room id */
+    private final ConcurrentHashMap<String, String> locations = new ConcurrentHashMap<>();
+
+    /** room id -> player ids, rooms without players are removed */
+    private final ConcurrentHashMap<String, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * @param player player id
+     * @param room room the player is now in
+     * @return the room the player was in, or null if the player was not known
+     */
+    public String put(String player, String room) {
+        String[] left = new String[1];
+        locations.compute(player, (key, previous) -> {
+            left[0] = previous;
+            if ( previous != null && !previous.equals(room) ) {
+                leave(previous, player);
+            }
+            rooms.compute(room, (r, players) -> {
+                if ( players == null ) {
+                    players = ConcurrentHashMap.newKeySet();
+                }
+                players.add(player);
+                return players;
+            });
+            return room;
+        });
+        return left[0];
+    }
+
+    /**
+     * @param player player id, of a player that no longer exists
+     * @return the room the player was in, or null if the player was not known
+     */
+    public String remove(String player) {
+        String[] left = new String[1];
+        locations.computeIfPresent(player, (key, previous) -> {
+            left[0] = previous;
+            leave(previous, player);
+            return null;
+        });
+        return left[0];
+    }
+
+    private void leave(String room, String player) {
+        rooms.computeIfPresent(room, (r, players) -> {
+            players.remove(player);
+            return players.isEmpty() ? null : players;
+        });
+    }
+
+    /**
+     * @param room room id
+     * @return a copy of the ids of the players in the room
+     */
+    public Set<String> playersAt(String room) {
+        Set<String> players = rooms.get(room);
+        return players == null ? Collections.emptySet() : new HashSet<>(players);
+    }
+
+    /**
+     * @param room room id
+     * @return number of players in the room
+     */
+    public int count(String room) {
+        Set<String> players = rooms.get(room);
+        return players == null ? 0 : players.size();
+    }
+
+    /**
+     * @param consumer called with each room that has players, and how many
+     */
+    public void forEachRoom(BiConsumer<String, Integer> consumer) {
+        rooms.forEach((room, players) -> consumer.accept(room, players.size()));
+    }
+
+    /**
+     * @param player player id
+     * @return the room the player is in, or null if the player is not known
+     */
+    public String roomOf(String player) {
+        return locations.get(player);
+    }
+
+    /**
+     * @return a copy of player id -> room id, for every known player
+     */
+    public Map<String, String> locations() {
+        return new HashMap<>(locations);
+    }
+
+    public int getPlayerCount() {
+        return locations.size();
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public void clear() {
+        locations.clear();
+        rooms.clear();
+    }
+}
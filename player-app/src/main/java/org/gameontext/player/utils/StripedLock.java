@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, chosen by the hash of a key: work for the same key
+ * is serialized, work for different keys rarely waits.
+ * Counts, per stripe, how often a lock was already held and how long
+ * callers waited for it.
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] locks;
+    private final AtomicLongArray contended;
+    private final AtomicLongArray waitNanos;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StripedLock(int stripes) {
+        int size = 1;
+        while ( size < stripes ) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        contended = new AtomicLongArray(size);
+        waitNanos = new AtomicLongArray(size);
+    }
+
+    /**
+     * Lock the stripe for the given key, waiting at most the given time.
+     * If this returns true, callers must call {@link #unlock(Object)} with
+     * the same key in a finally block.
+     * @return true if the stripe was locked, false if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryLock(Object key, long timeout, TimeUnit unit) throws InterruptedException {
+        int i = stripe(key);
+        ReentrantLock lock = locks[i];
+        if ( lock.tryLock() ) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        contended.incrementAndGet(i);
+        try {
+            return lock.tryLock(timeout, unit);
+        } finally {
+            waitNanos.addAndGet(i, System.nanoTime() - start);
+        }
+    }
+
+    public void unlock(Object key) {
+        locks[stripe(key)].unlock();
+    }
+
+    public int size() {
+        return locks.length;
+    }
+
+    int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // spread the high bits, as HashMap does
+        return h & (locks.length - 1);
+    }
+
+    /** @return number of lock requests that had to wait, over all stripes */
+    public long getContended() {
+        long total = 0;
+        for (int i = 0; i < locks.length; i++) {
+            total += contended.get(i);
+        }
+        return total;
+    }
+
+    /** @return the number of waits on the most contended stripe */
+    public long getMaxContended() {
+        long max = 0;
+        for (int i = 0; i < locks.length; i++) {
+            max = Math.max(max, contended.get(i));
+        }
+        return max;
+    }
+
+    /** @return total time spent waiting for locks, in milliseconds */
+    public long getWaitMillis() {
+        long total = 0;
+        for (int i = 0; i < locks.length; i++) {
+            total += waitNanos.get(i);
+        }
+        return total / 1_000_000;
+    }
+
+    /** @return number of lock requests that had to wait for the given stripe */
+    public long getContended(int stripe) {
+        return contended.get(stripe);
+    }
+
+    /** @return time spent waiting for the given stripe, in milliseconds */
+    public long getWaitMillis(int stripe) {
+        return waitNanos.get(stripe) / 1_000_000;
+    }
+}
@@ -17,20 +17,35 @@ package org.gameontext.player;
 
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 
 import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
 import org.ektorp.UpdateConflictException;
 import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerChangesFeed;
+import org.gameontext.player.control.PlayerFallbacks;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerListing;
+import org.gameontext.player.control.PlayerLocationJournal;
+import org.gameontext.player.control.PlayerLocationStore;
 import org.gameontext.player.entity.PlayerArgument;
 import org.gameontext.player.entity.PlayerDbRecord;
 import org.gameontext.player.entity.PlayerResponse;
@@ -39,6 +54,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import mockit.Expectations;
@@ -51,8 +69,16 @@ import mockit.integration.junit4.JMockit;
 @RunWith(JMockit.class)
 public class AllPlayersResourceTest {
 
+    @Tested PlayerCache cache;
+    @Tested PlayerLocationStore locations;
+    @Tested PlayerFallbacks fallbacks;
     @Tested AllPlayersResource tested;
     @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+    @Injectable PlayerLocationJournal journal;
+    @Injectable ManagedThreadFactory threadFactory;
+    @Injectable PlayerIoExecutor executor;
+    @Injectable PlayerListing listing;
     @Injectable HttpServletRequest request;
     @Injectable Kafka kafka;
 
@@ -152,7 +178,7 @@ public class AllPlayersResourceTest {
             dbi.queryView((ViewQuery)any,PlayerDbRecord.class); result = players;
         }};
 
-        tested.getAllPlayers();
+        tested.allPlayers(null, null, null, null, null, null, null);
 
         new Verifications() {{
             GenericEntity<List<PlayerResponse>> entity;
@@ -162,7 +188,205 @@ public class AllPlayersResourceTest {
             List<PlayerResponse> resultList = (entity.getEntity());
             Assert.assertEquals("Players list is not the expected size", players.size(), resultList.size());
             //TODO: verify
+
+            // a single page
+            b.link((URI) any, anyString); times = 0;
+        }};
+
+    }
+
+    @Test
+    public void checkGetAllPaged(@Mocked Response response, @Mocked ResponseBuilder builder, @Mocked UriBuilder self) throws IOException{
+
+        PlayerDbRecord another = new PlayerDbRecord();
+        another.setName("Kitten");
+        another.setId("one");
+        another.setRev("343");
+
+        List<PlayerDbRecord> players = new ArrayList<PlayerDbRecord>();
+        players.add(playerDb);
+        players.add(another);
+
+        new Expectations() {{
+            dbi.queryView((ViewQuery)any,PlayerDbRecord.class); result = players;
+        }};
+
+        tested.allPlayers(null, null, null, 1, AllPlayersResource.encodeCursor("123", false), self, null);
+
+        new Verifications() {{
+            ViewQuery query;
+            dbi.queryView(query = withCapture(), PlayerDbRecord.class);
+            Assert.assertEquals("One extra row to find the next page", 2, query.getLimit());
+            Assert.assertEquals("123", query.getStartKey());
+            Assert.assertEquals("123", query.getStartDocId());
+
+            GenericEntity<List<PlayerResponse>> entity;
+            builder.entity(entity = withCapture());
+            Assert.assertEquals("Only the page should be returned", 1, entity.getEntity().size());
+
+            self.replaceQueryParam("cursor", AllPlayersResource.encodeCursor("one", false)); times = 1;
+            builder.link((URI) any, "next"); times = 1;
+
+            // the listing orders players differently: the view's cursor stays on the view
+            listing.refresh(); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkGetAllListingCursorNeedsListing() throws IOException{
+        new Expectations() {{
+            listing.refresh(); result = false;
+        }};
+
+        try {
+            tested.allPlayers(null, null, null, 1, AllPlayersResource.encodeCursor("123", true), null, null);
+            fail("Expected account modification exception");
+        } catch ( PlayerAccountModificationException pme ) {
+            Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE, pme.getStatus());
+        }
+
+        new Verifications() {{
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkGetAllStreamed(@Mocked Response response, @Mocked ResponseBuilder builder,
+            @Mocked StreamingViewResult view, @Mocked ViewResult.Row fishRow,
+            @Mocked ViewResult.Row catRow) throws IOException{
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode fish = mapper.readTree("{\"_id\":\"123\",\"name\":\"Chunky\",\"location\":\"Home\",\"apiKey\":\"FISH\"}");
+        JsonNode cat = mapper.readTree("{\"_id\":\"one\",\"name\":\"Kitten\"}");
+
+        new Expectations() {{
+            dbi.queryForStreamingView((ViewQuery) any); result = view;
+            view.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getDocAsNode(); result = fish;
+            catRow.getDocAsNode(); result = cat;
+        }};
+
+        tested.allPlayers(null, null, null, 0, null, null, null);
+
+        List<StreamingOutput> bodies = new ArrayList<>();
+        new Verifications() {{
+            builder.entity(withCapture(bodies));
         }};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bodies.get(0).write(out);
+
+        JsonNode players = mapper.readTree(out.toByteArray());
+        Assert.assertEquals(2, players.size());
+        Assert.assertEquals("Kitten", players.get(1).get("name").asText());
+        Assert.assertEquals("Home", players.get(0).get("location").get("location").asText());
+        Assert.assertNull("Credentials should be stripped", players.get(0).get("credentials"));
 
+        new Verifications() {{
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); times = 0;
+            view.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void checkGetAllFromListing(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException{
+        String etag = "W/\"abc\"";
+        new Expectations() {{
+            listing.refresh(); result = true;
+            listing.getETag(); result = etag;
+            listing.page(null, AllPlayersResource.DEFAULT_PAGE_SIZE + 1); result = Arrays.asList(playerDb);
+        }};
+
+        tested.allPlayers(null, null, null, null, null, null, null);
+        tested.allPlayers(null, null, null, null, null, null, "\"abc\"");
+
+        new Verifications() {{
+            Response.notModified(); times = 1;
+            builder.header("ETag", etag); times = 2;
+            listing.page(null, anyInt); times = 1;
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkGetAllBadCursor() throws IOException{
+        try {
+            tested.allPlayers(null, null, null, null, "not a cursor!", null, null);
+            fail("Expected account modification exception");
+        } catch ( PlayerAccountModificationException pme ) {
+            Assert.assertEquals(Response.Status.BAD_REQUEST, pme.getStatus());
+        }
+    }
+
+    @Test
+    public void checkGetByIds(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException{
+
+        PlayerDbRecord another = new PlayerDbRecord();
+        another.setName("Kitten");
+        another.setId("one");
+        another.setApiKey("ShinyShoes");
+        another.setRev("343");
+
+        List<PlayerDbRecord> players = new ArrayList<PlayerDbRecord>();
+        players.add(playerDb);
+        players.add(another);
+
+        new Expectations() {{
+            dbi.queryView((ViewQuery)any,PlayerDbRecord.class); result = players;
+        }};
+
+        tested.allPlayers("one", Arrays.asList("one", "123", "missing"), null, null, null, null, null);
+
+        new Verifications() {{
+            Map<String,PlayerResponse> result;
+            ResponseBuilder b = Response.ok(); times = 1;
+            b.entity(result = withCapture());
+
+            Assert.assertEquals("Every requested id should be present", 3, result.size());
+            Assert.assertNotNull("Caller should see their own credentials", result.get("one").getCredentials());
+            Assert.assertNull("Caller should not see credentials of other players", result.get("123").getCredentials());
+            Assert.assertNull("Unknown player should map to null", result.get("missing"));
+
+            // one query for all the ids
+            dbi.queryView((ViewQuery)any,PlayerDbRecord.class); times = 1;
+        }};
+    }
+
+    @Test
+    public void checkFallbackToLastGood(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException{
+        new Expectations() {{
+            dbi.queryView((ViewQuery)any,PlayerDbRecord.class); result = new ArrayList<>(Arrays.asList(playerDb));
+        }};
+        tested.allPlayers("123", Arrays.asList("123", "missing"), null, null, null, null, null);
+
+        // same players, asked for in a different order
+        tested.getAllPlayersFallback("123", Arrays.asList("missing", "123"), null, null, null, null);
+        // never answered
+        tested.getAllPlayersFallback("123", Arrays.asList("123"), null, null, null, null);
+
+        new Verifications() {{
+            List<Map<String,PlayerResponse>> results = new ArrayList<>();
+            builder.entity(withCapture(results));
+            Assert.assertEquals("Fallback should answer with the players", 2, results.get(1).size());
+            Assert.assertEquals("Chunky", results.get(1).get("123").getName());
+
+            builder.header("Warning", anyString); times = 1;
+            Response.status(Response.Status.SERVICE_UNAVAILABLE); times = 1;
+        }};
+        Assert.assertEquals(1, fallbacks.getStale());
+        Assert.assertEquals(1, fallbacks.getUnavailable());
+    }
+
+    @Test
+    public void checkGetByTooManyIds() throws IOException{
+        List<String> ids = new ArrayList<String>();
+        for(int i = 0; i <= AllPlayersResource.MAX_QUERY_IDS; i++) {
+            ids.add("id" + i);
+        }
+
+        try {
+            tested.allPlayers(null, ids, null, null, null, null, null);
+            fail("Expected account modification exception");
+        } catch ( PlayerAccountModificationException pme ) {
+            Assert.assertEquals(Response.Status.BAD_REQUEST, pme.getStatus());
+        }
     }
 }
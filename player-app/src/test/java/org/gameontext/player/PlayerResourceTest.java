@@ -16,22 +16,41 @@
 package org.gameontext.player;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
 
 import org.ektorp.CouchDbConnector;
 import org.ektorp.DocumentNotFoundException;
 import org.ektorp.UpdateConflictException;
+import org.ektorp.UpdateHandlerRequest;
 import org.gameontext.player.Kafka;
 import org.gameontext.player.PlayerAccountResource;
+import org.gameontext.player.Kafka.PlayerEvent;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerChangesFeed;
+import org.gameontext.player.control.PlayerIoExecutor;
+import org.gameontext.player.control.PlayerLocationJournal;
+import org.gameontext.player.control.PlayerLocationStore;
+import org.gameontext.player.control.PlayerKeyIndex;
 import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
 import org.gameontext.player.entity.PlayerArgument;
 import org.gameontext.player.entity.PlayerDbRecord;
 import org.gameontext.player.entity.PlayerResponse;
@@ -39,6 +58,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import mockit.Expectations;
@@ -51,9 +73,20 @@ import mockit.integration.junit4.JMockit;
 @RunWith(JMockit.class)
 public class PlayerResourceTest {
 
+    @Tested PlayerCache cache;
+    @Tested PlayerLocationStore locations;
     @Tested PlayerAccountResource tested;
     @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+    @Injectable PlayerLocationJournal journal;
+    @Injectable ManagedThreadFactory threadFactory;
+    @Injectable PlayerIoExecutor executor;
+    @Injectable PlayerKeyIndex keyIndex;
     @Injectable HttpServletRequest request;
+    @Injectable Request jaxrsRequest;
+
+    // no JAX-RS implementation in unit tests (needed by EntityTag)
+    @Mocked RuntimeDelegate runtimeDelegate;
     @Injectable Kafka kafka;
 
     @Injectable(value="testId")
@@ -79,75 +112,188 @@ public class PlayerResourceTest {
     }
 
     @Test
-    public void checkGetMatchingId() throws IOException {
+    public void checkGetMatchingId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
         Claims claims = Jwts.claims();
         claims.setAudience("client");
         new Expectations() {{
-            request.getAttribute("player.id"); result = playerId;
             dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
         }};
 
-        PlayerResponse result = tested.getPlayerInformation(playerId);
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+
+        new Verifications() {{
+            PlayerResponse result;
+            Response.ok(result = withCapture()); times = 1;
 
-        assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
-        assertEquals( "Method should return the player story", playerDb.getStory(), result.getStory());
-        assertEquals( "Method should return the player mode", playerDb.getPlayerMode(), result.getPlayerMode());
-        assertNotNull( "Method should return credentials for matching id",result.getCredentials());
+            assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
+            assertEquals( "Method should return the player story", playerDb.getStory(), result.getStory());
+            assertEquals( "Method should return the player mode", playerDb.getPlayerMode(), result.getPlayerMode());
+            assertNotNull( "Method should return credentials for matching id",result.getCredentials());
+        }};
     }
 
     @Test
-    public void checkGetMissingId() throws IOException {
+    public void checkGetMissingId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+        new Expectations() {{
+            dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
+        }};
+
+        tested.playerInformation(null, playerId, null, jaxrsRequest);
+
+        new Verifications() {{
+            PlayerResponse result;
+            Response.ok(result = withCapture()); times = 1;
+
+            assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
+            assertNull( "Method should not return credentials for missing id",result.getCredentials());
+        }};
+    }
+
+    @Test
+    public void checkMismatchedId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
         new Expectations() {{
-            request.getAttribute("player.id"); result = null;
             dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
         }};
 
-        PlayerResponse result = tested.getPlayerInformation(playerId);
+        tested.playerInformation("wibble", playerId, null, jaxrsRequest);
 
-        assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
-        assertNull( "Method should not return credentials for missing id",result.getCredentials());
+        new Verifications() {{
+            PlayerResponse result;
+            Response.ok(result = withCapture()); times = 1;
+
+            assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
+            assertNull( "Method should not return credentials for mismatched id",result.getCredentials());
+        }};
     }
 
     @Test
-    public void checkMismatchedId() throws IOException {
+    public void checkGetFields(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
         new Expectations() {{
-            request.getAttribute("player.id"); result = "wibble";
             dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
         }};
 
-        PlayerResponse result = tested.getPlayerInformation(playerId);
+        tested.playerInformation("wibble", playerId, "name,location,credentials", jaxrsRequest);
+
+        new Verifications() {{
+            StreamingOutput body;
+            Response.ok(body = withCapture()); times = 1;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.write(out);
+            JsonNode result = new ObjectMapper().readTree(out.toByteArray());
+
+            assertEquals("Method should always return the player id", playerDb.getId(), result.get("_id").asText());
+            assertEquals("Method should return the player name", playerDb.getName(), result.get("name").asText());
+            assertEquals("Method should return the player location", playerDb.getLocation(), result.get("location").get("location").asText());
+            assertNull("Method should not return fields that were not requested", result.get("story"));
+            assertNull("Method should not return credentials for mismatched id", result.get("credentials"));
+        }};
+    }
 
-        assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
-        assertNull( "Method should not return credentials for mismatched id",result.getCredentials());
+    @Test
+    public void checkGetUnknownField() throws IOException {
+        try {
+            tested.playerInformation(null, "fish", "name,shoeSize", jaxrsRequest);
+            fail("Expected account modification exception");
+        } catch ( PlayerAccountModificationException pme ) {
+            assertEquals(Response.Status.BAD_REQUEST, pme.getStatus());
+        }
     }
 
     @Test(expected=DocumentNotFoundException.class)
     public void checkUnknownId(@Mocked PlayerDbRecord record, @Mocked PlayerResponse player) throws IOException {
         String playerId = "fish";
         new Expectations() {{
-            request.getAttribute("player.id"); result = playerId;
             dbi.get(PlayerDbRecord.class, playerId); result = new DocumentNotFoundException("player.id");
         }};
 
-        tested.getPlayerInformation(playerId);
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
     }
 
     @Test
-    public void checkGetSystemId() throws IOException {
+    public void checkGetSystemId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
         new Expectations() {{
             tested.systemId = "gameontext.org";
-            request.getAttribute("player.id"); result = "gameontext.org";
             dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
         }};
 
-        PlayerResponse result = tested.getPlayerInformation(playerId);
+        tested.playerInformation("gameontext.org", playerId, null, jaxrsRequest);
 
-        assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
-        assertNotNull( "Method should return credentials for system id",result.getCredentials());
+        new Verifications() {{
+            PlayerResponse result;
+            Response.ok(result = withCapture()); times = 1;
+
+            assertEquals( "Method should return the mocked player", playerDb.getId(), result.getId());
+            assertNotNull( "Method should return credentials for system id",result.getCredentials());
+        }};
+    }
+
+    @Test
+    public void checkGetEntityTag(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+        new Expectations() {{
+            dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
+        }};
+
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+
+        new Verifications() {{
+            EntityTag tag;
+            builder.tag(tag = withCapture());
+            assertEquals("ETag should be the document revision", playerDb.getRev(), tag.getValue());
+
+            // the second request is served from the cache
+            dbi.get(PlayerDbRecord.class, playerId); times = 1;
+        }};
+    }
+
+    @Test
+    public void checkEntityTagHasLocation(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+        new Expectations(locations) {{
+            dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = null;
+            // same String.hashCode()
+            locations.current(playerDb); returns(playerDb.withLocation("Aa"), playerDb.withLocation("BB"));
+        }};
+
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+
+        new Verifications() {{
+            List<EntityTag> tags = new ArrayList<>();
+            builder.tag(withCapture(tags));
+            assertEquals(2, tags.size());
+            assertNotEquals("A location held elsewhere should change the tag", tags.get(0).getValue(), tags.get(1).getValue());
+        }};
+    }
+
+    @Test
+    public void checkGetNotModified(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+        new Expectations() {{
+            dbi.get(PlayerDbRecord.class, playerId); result = playerDb;
+            jaxrsRequest.evaluatePreconditions(withInstanceOf(EntityTag.class)); result = builder;
+        }};
+
+        tested.playerInformation(playerId, playerId, null, jaxrsRequest);
+
+        new Verifications() {{
+            Response.ok(any); times = 0;
+            builder.build(); times = 1;
+        }};
     }
 
     @Test
@@ -264,6 +410,46 @@ public class PlayerResourceTest {
         }};
     }
 
+    @Test
+    public void checkUpdateHasPendingLocation(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+
+        PlayerDbRecord dbEntry = new PlayerDbRecord();
+        dbEntry.setApiKey("ShinyShoes");
+        dbEntry.setName("Kitten");
+        dbEntry.setId(playerId);
+        dbEntry.setLocation("Earth");
+
+        // e.g. a write-behind move, not written yet
+        new Expectations(locations) {{
+            locations.current(dbEntry); result = dbEntry.withLocation("Mars");
+        }};
+
+        Claims claims = Jwts.claims();
+        claims.setAudience("client");
+        new Expectations() {{
+            request.getAttribute("player.id"); result = playerId;
+            request.getAttribute("player.claims"); result = claims;
+            dbi.get(PlayerDbRecord.class, playerId); result = dbEntry;
+        }};
+
+        PlayerArgument proposed = new PlayerArgument();
+        proposed.setName("AnotherName");
+        proposed.setId(playerId);
+
+        tested.updatePlayer(playerId, proposed);
+
+        new Verifications() {{
+            PlayerResponse p;
+            Response.ok(p = withCapture());
+            assertEquals("Response should have the pending location", "Mars", p.getLocation().getLocation());
+
+            PlayerDbRecord published;
+            kafka.publishPlayerEvent(PlayerEvent.UPDATE, published = withCapture());
+            assertEquals("Event should have the pending location", "Mars", published.getLocation());
+        }};
+    }
+
     @Test
     public void checkServerIdUpdateMatchingId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
@@ -432,6 +618,14 @@ public class PlayerResourceTest {
         }};
     }
 
+    LocationUpdateResult locationResult(boolean ok, String location, PlayerDbRecord player) {
+        LocationUpdateResult result = new LocationUpdateResult();
+        result.setOk(ok);
+        result.setLocation(location);
+        result.setPlayer(player);
+        return result;
+    }
+
     @Test
     public void checkServerLocationUpdateMatchingId(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
@@ -441,7 +635,7 @@ public class PlayerResourceTest {
         dbEntry.setName("Kitten");
         dbEntry.setFavoriteColor("Tangerine");
         dbEntry.setId(playerId);
-        dbEntry.setLocation("Earth");
+        dbEntry.setLocation("Mars");
 
         LocationChange locChange = new LocationChange();
         locChange.setOldLocation("Earth");
@@ -451,14 +645,17 @@ public class PlayerResourceTest {
         claims.setAudience("server");
         new Expectations() {{
             tested.systemId = "gameontext.org";
-            request.getAttribute("player.claims"); result = claims;
-            dbi.get(PlayerDbRecord.class, playerId); result = dbEntry;
+            dbi.callUpdateHandler((UpdateHandlerRequest) any, LocationUpdateResult.class);
+            result = locationResult(true, "Mars", dbEntry);
         }};
 
-        tested.updatePlayerLocation(playerId, locChange);
+        tested.updateLocation(claims, playerId, locChange);
 
         new Verifications() {{
-            dbi.update(any); times = 1;
+            // one round trip: no separate read, no document update
+            dbi.get(PlayerDbRecord.class, playerId); times = 0;
+            dbi.update(any); times = 0;
+            kafka.publishPlayerEvent(Kafka.PlayerEvent.UPDATE_LOCATION, dbEntry, anyString); times = 1;
             //check we got 200
             Response.status(200); times = 1;
         }};
@@ -468,13 +665,6 @@ public class PlayerResourceTest {
     public void checkServerLocationUpdateMatchingIdNoMatchingLocation(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
 
-        PlayerDbRecord dbEntry = new PlayerDbRecord();
-        dbEntry.setApiKey("ShinyShoes");
-        dbEntry.setName("Kitten");
-        dbEntry.setFavoriteColor("Tangerine");
-        dbEntry.setId(playerId);
-        dbEntry.setLocation("Earth");
-
         LocationChange locChange = new LocationChange();
         locChange.setOldLocation("Mars");
         locChange.setNewLocation("Venus");
@@ -483,27 +673,62 @@ public class PlayerResourceTest {
         claims.setAudience("server");
         new Expectations() {{
             tested.systemId = "gameontext.org";
-            request.getAttribute("player.claims"); result = claims;
-            dbi.get(PlayerDbRecord.class, playerId); result = dbEntry;
+            dbi.callUpdateHandler((UpdateHandlerRequest) any, LocationUpdateResult.class);
+            result = locationResult(false, "Earth", null);
         }};
 
-        tested.updatePlayerLocation(playerId, locChange);
+        tested.updateLocation(claims, playerId, locChange);
 
         new Verifications() {{
-            dbi.update(any); times = 0;
+            kafka.publishPlayerEvent((Kafka.PlayerEvent) any, (PlayerDbRecord) any, anyString); times = 0;
             //check we got 409
             Response.status(409); times = 1;
         }};
     }
 
+    @Test(expected = DocumentNotFoundException.class)
+    public void checkServerLocationUpdateUnknownId() throws IOException {
+        LocationChange locChange = new LocationChange();
+        locChange.setOldLocation("Earth");
+        locChange.setNewLocation("Mars");
+
+        LocationUpdateResult missing = new LocationUpdateResult();
+        missing.setMissing(true);
+
+        Claims claims = Jwts.claims();
+        claims.setAudience("server");
+        new Expectations() {{
+            dbi.callUpdateHandler((UpdateHandlerRequest) any, LocationUpdateResult.class); result = missing;
+        }};
+
+        tested.updateLocation(claims, "fish", locChange);
+    }
+
     @Test(expected = UpdateConflictException.class)
     public void checkServerLocationUpdateMatchingIdConflict(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
         String playerId = "fish";
 
+        LocationChange locChange = new LocationChange();
+        locChange.setOldLocation("Earth");
+        locChange.setNewLocation("Mars");
+
+        Claims claims = Jwts.claims();
+        claims.setAudience("server");
+        new Expectations() {{
+            tested.systemId = "gameontext.org";
+            dbi.callUpdateHandler((UpdateHandlerRequest) any, LocationUpdateResult.class);
+            result = new UpdateConflictException();
+        }};
+
+        tested.updateLocation(claims, playerId, locChange);
+    }
+
+    @Test
+    public void checkServerLocationUpdateWithoutHandler(@Mocked Response response, @Mocked ResponseBuilder builder) throws IOException {
+        String playerId = "fish";
+
         PlayerDbRecord dbEntry = new PlayerDbRecord();
-        dbEntry.setApiKey("ShinyShoes");
         dbEntry.setName("Kitten");
-        dbEntry.setFavoriteColor("Tangerine");
         dbEntry.setId(playerId);
         dbEntry.setLocation("Earth");
 
@@ -514,13 +739,17 @@ public class PlayerResourceTest {
         Claims claims = Jwts.claims();
         claims.setAudience("server");
         new Expectations() {{
-            tested.systemId = "gameontext.org";
-            request.getAttribute("player.claims"); result = claims;
+            dbi.callUpdateHandler((UpdateHandlerRequest) any, LocationUpdateResult.class);
+            result = new DocumentNotFoundException("_design/players/_update/location");
             dbi.get(PlayerDbRecord.class, playerId); result = dbEntry;
-            dbi.update(any); result = new UpdateConflictException();
         }};
 
-        tested.updatePlayerLocation(playerId, locChange);
+        tested.updateLocation(claims, playerId, locChange);
+
+        new Verifications() {{
+            dbi.update(dbEntry); times = 1;
+            Response.status(200); times = 1;
+        }};
     }
 
 }
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerCacheTest {
+
+    @Tested PlayerCache cache;
+    @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+
+    PlayerDbRecord playerDb;
+
+    @Before
+    public void initPlayer() {
+        playerDb = record("2-abc", "Earth");
+    }
+
+    PlayerDbRecord record(String rev, String location) {
+        PlayerDbRecord p = new PlayerDbRecord();
+        p.setId("fish");
+        p.setName("Chunky");
+        p.setRev(rev);
+        p.setLocation(location);
+        return p;
+    }
+
+    @Test
+    public void checkReadThrough() {
+        new Expectations() {{
+            dbi.get(PlayerDbRecord.class, "fish"); result = playerDb;
+        }};
+
+        assertSame("First read should come from the database", playerDb, cache.get("fish"));
+        assertSame("Second read should come from the cache", playerDb, cache.get("fish"));
+
+        new Verifications() {{
+            dbi.get(PlayerDbRecord.class, "fish"); times = 1;
+        }};
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void checkNewerRevisionReplaces(@Mocked DocumentChange change) {
+        cache.put(playerDb);
+        PlayerDbRecord updated = record("3-def", "Mars");
+
+        new Expectations() {{
+            change.getId(); result = "fish";
+        }};
+
+        cache.onChange(change, updated);
+        assertSame("Newer revision should replace cached record", updated, cache.peek("fish"));
+    }
+
+    @Test
+    public void checkOlderRevisionIgnored(@Mocked DocumentChange change) {
+        cache.put(playerDb);
+
+        new Expectations() {{
+            change.getId(); result = "fish";
+        }};
+
+        cache.onChange(change, record("1-old", "Venus"));
+        assertSame("Older revision should not replace cached record", playerDb, cache.peek("fish"));
+
+        cache.put(record("1-old", "Venus"));
+        assertSame("Older revision should not replace cached record", playerDb, cache.peek("fish"));
+    }
+
+    @Test
+    public void checkDeleteEvicts(@Mocked DocumentChange change) {
+        cache.put(playerDb);
+
+        new Expectations() {{
+            change.getId(); result = "fish";
+        }};
+
+        cache.onChange(change, null);
+        assertNull("Deleted record should be evicted", cache.peek("fish"));
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void checkLocationFromView(@Mocked ViewResult view, @Mocked ViewResult.Row row) {
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); returns(Arrays.asList(row), Collections.emptyList());
+            row.getValueAsNode(); result = new TextNode("Mars");
+        }};
+
+        assertEquals("Location should come from the view", "Mars", cache.getLocation("fish"));
+        try {
+            cache.getLocation("fish");
+            fail("Expected DocumentNotFoundException for a player missing from the view");
+        } catch (DocumentNotFoundException e) {
+            // expected
+        }
+
+        new Verifications() {{
+            dbi.get(PlayerDbRecord.class, anyString); times = 0;
+        }};
+        assertNull("Location read should not cache the player", cache.peek("fish"));
+    }
+
+    @Test
+    public void checkLocationFromCache() {
+        cache.put(playerDb);
+        assertEquals("Earth", cache.getLocation("fish"));
+
+        new Verifications() {{
+            dbi.queryView((ViewQuery) any); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkChangeDuringFetch(@Mocked DocumentChange other, @Mocked DocumentChange same) {
+        new Expectations() {{
+            other.getId(); result = "cat";
+            same.getId(); result = "fish";
+            dbi.get(PlayerDbRecord.class, "fish"); result = new Delegate<PlayerDbRecord>() {
+                @SuppressWarnings("unused")
+                PlayerDbRecord get(Class<PlayerDbRecord> type, String id) {
+                    cache.onChange(other, null);
+                    return playerDb;
+                }
+            };
+        }};
+
+        cache.get("fish");
+        assertSame("A change to another player should not stop caching", playerDb, cache.peek("fish"));
+
+        cache.evict("fish");
+        new Expectations() {{
+            dbi.get(PlayerDbRecord.class, "fish"); result = new Delegate<PlayerDbRecord>() {
+                @SuppressWarnings("unused")
+                PlayerDbRecord get(Class<PlayerDbRecord> type, String id) {
+                    cache.onChange(same, record("3-def", "Mars"));
+                    return playerDb;
+                }
+            };
+        }};
+
+        cache.get("fish");
+        assertNull("A change to the player while fetching it should stop caching", cache.peek("fish"));
+    }
+
+    @Test
+    public void checkRevision() {
+        assertEquals(3, PlayerCache.revision("3-917fa2381192822767f010b95b45325b"));
+        assertEquals(0, PlayerCache.revision(null));
+        assertEquals(0, PlayerCache.revision("high"));
+    }
+}
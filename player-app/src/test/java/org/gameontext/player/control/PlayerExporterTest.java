@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerExporterTest {
+
+    @Injectable CouchDbConnector dbi;
+
+    PlayerExporter exporter = new PlayerExporter();
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Before
+    public void start() {
+        exporter.db = dbi;
+        exporter.locations = new PlayerLocationStore();
+        exporter.init();
+    }
+
+    @After
+    public void stop() {
+        exporter.stop();
+    }
+
+    @Test
+    public void checkSplit(@Mocked ViewResult view, @Mocked ViewResult.Row row) {
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getTotalRows(); result = 300;
+            view.getRows(); result = Collections.singletonList(row);
+            row.getKey(); returns("github:2", "twitter:5");
+        }};
+
+        List<PlayerExporter.Range> ranges = exporter.split(3);
+        assertEquals(3, ranges.size());
+        assertNull(ranges.get(0).from);
+        assertEquals("github:2", ranges.get(0).to);
+        assertEquals("github:2", ranges.get(1).from);
+        assertEquals("twitter:5", ranges.get(1).to);
+        assertEquals("twitter:5", ranges.get(2).from);
+        assertNull(ranges.get(2).to);
+
+        new Verifications() {{
+            List<ViewQuery> queries = new ArrayList<>();
+            dbi.queryView(withCapture(queries)); times = 3;
+            assertNull("First boundary found from the start", queries.get(1).getStartKey());
+            assertEquals(100, queries.get(1).getSkip());
+            assertEquals("Next boundary found from the previous one", "github:2", queries.get(2).getStartKey());
+            assertEquals(100, queries.get(2).getSkip());
+        }};
+    }
+
+    @Test
+    public void checkExport(@Mocked StreamingViewResult rows, @Mocked ViewResult.Row fishRow,
+            @Mocked ViewResult.Row catRow) throws Exception {
+        new Expectations() {{
+            rows.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getDocAsNode(); result = mapper.readTree("{\"_id\":\"fish\",\"name\":\"Chunky\",\"apiKey\":\"FISH\"}");
+            catRow.getDocAsNode(); result = mapper.readTree("{\"_id\":\"cat\",\"name\":\"Tom\"}");
+        }};
+
+        PlayerExporter.Slot slot = exporter.reserve();
+        try {
+            exporter.reserve();
+            fail("Only one export should run at a time");
+        } catch (PlayerAccountModificationException e) {
+            assertEquals(Response.Status.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(Collections.singletonList(new PlayerExporter.Range(null, null)), false, out);
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("fish", mapper.readTree(lines[0]).get("_id").asText());
+        assertNull("No credentials unless asked for", mapper.readTree(lines[0]).get("credentials"));
+        assertEquals(2, exporter.getExported());
+
+        slot.release();
+        slot.release();
+        assertEquals("Releasing twice frees one slot", 1, exporter.running.availablePermits());
+        exporter.reserve().release();
+    }
+}
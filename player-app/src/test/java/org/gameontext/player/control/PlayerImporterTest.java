@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerImportResult;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerImporterTest {
+
+    @Tested PlayerImporter importer;
+    @Injectable CouchDbConnector db;
+
+    InputStream players(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void checkImportOutcomes() throws Exception {
+        importer.chunkSize = 2;
+        DocumentOperationResult taken = DocumentOperationResult.newInstance("dog", "conflict", "Document update conflict.");
+        new Expectations() {{
+            db.executeBulk((Collection<?>) any); returns(Collections.emptyList(), Collections.singletonList(taken));
+        }};
+
+        List<PlayerImportResult> results = importer.importPlayers(players(
+                "{\"_id\":\"fish\",\"name\":\"Chunky\",\"_rev\":\"2-abc\",\"apiKey\":\"old\"}\n"
+              + "{\"_id\":\"cat\",\"name\":\"Tom\"}\n"
+              + "{\"_id\":\"bird\"}\n"
+              + "{\"_id\":\"fish\",\"name\":\"Again\"}\n"
+              + "{\"_id\":\"loc:cat\",\"name\":\"Tom\"}\n"
+              + "{\"_id\":\"dog\",\"name\":\"Rex\"}\n"));
+
+        assertEquals(6, results.size());
+        assertEquals(PlayerImportResult.CREATED, results.get(0).getStatus());
+        assertEquals("fish", results.get(0).getPlayerId());
+        assertEquals(PlayerImportResult.CREATED, results.get(1).getStatus());
+        assertEquals("A name is required", results.get(2).getMessage());
+        assertEquals("Duplicate id", results.get(3).getMessage());
+        assertEquals("Reserved id", results.get(4).getMessage());
+        assertEquals(PlayerImportResult.CONFLICT, results.get(5).getStatus());
+        assertEquals("dog", results.get(5).getPlayerId());
+        assertNull("Conflicts have no player for the CREATE event", results.get(5).getPlayer());
+        assertEquals(2, importer.getCreated());
+
+        PlayerDbRecord fish = results.get(0).getPlayer();
+        assertNull("A new document has no revision", fish.getRev());
+        assertNotNull(fish.getApiKey());
+        assertTrue("A new API key should be generated", !"old".equals(fish.getApiKey()));
+
+        new Verifications() {{
+            List<Collection<PlayerDbRecord>> chunks = new ArrayList<>();
+            db.executeBulk(withCapture(chunks)); times = 2;
+            assertEquals(2, chunks.get(0).size());
+            assertEquals("Remainder written at the end", 1, chunks.get(1).size());
+        }};
+    }
+
+    @Test
+    public void checkImportArray() throws Exception {
+        new Expectations() {{
+            db.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        List<PlayerImportResult> results = importer.importPlayers(players(
+                "[{\"_id\":\"fish\",\"name\":\"Chunky\"},{\"_id\":\"cat\",\"name\":\"Tom\"}]"));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isCreated());
+        assertTrue(results.get(1).isCreated());
+    }
+
+    @Test
+    public void checkUnreadableInput() throws Exception {
+        new Expectations() {{
+            db.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        List<PlayerImportResult> results = importer.importPlayers(players(
+                "{\"_id\":\"fish\",\"name\":\"Chunky\"}\n{\"_id\":\"cat\",\"name\":"));
+
+        assertEquals(2, results.size());
+        assertTrue("Players before the error are kept", results.get(0).isCreated());
+        assertEquals(PlayerImportResult.INVALID, results.get(1).getStatus());
+        assertNull(results.get(1).getPlayerId());
+    }
+
+    @Test
+    public void checkTooManyPlayers() throws Exception {
+        new Expectations() {{
+            db.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i <= PlayerImporter.MAX_PLAYERS; i++) {
+            body.append("{\"_id\":\"fish").append(i).append("\",\"name\":\"Chunky\"}\n");
+        }
+        // never read
+        body.append("{\"_id\":");
+
+        List<PlayerImportResult> results = importer.importPlayers(players(body.toString()));
+
+        assertEquals("One result for the players over the limit", PlayerImporter.MAX_PLAYERS + 1, results.size());
+        assertTrue(results.get(PlayerImporter.MAX_PLAYERS - 1).isCreated());
+        PlayerImportResult last = results.get(PlayerImporter.MAX_PLAYERS);
+        assertEquals(PlayerImportResult.INVALID, last.getStatus());
+        assertNull(last.getPlayerId());
+    }
+}
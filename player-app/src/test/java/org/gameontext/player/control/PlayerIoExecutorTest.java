@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerIoExecutorTest {
+
+    @Injectable AsyncResponse response;
+
+    PlayerIoExecutor executor = new PlayerIoExecutor();
+
+    @Before
+    public void start() {
+        executor.init();
+    }
+
+    @Test
+    public void checkResumeWithResult() {
+        executor.submit(response, () -> "Mars");
+
+        executor.stop(); // waits for the task to complete
+
+        new Verifications() {{
+            response.resume("Mars");
+        }};
+    }
+
+    @Test
+    public void checkResumeWithFallback() {
+        executor.submit(response, () -> { throw new IOException("database down"); }, () -> "Earth");
+
+        executor.stop(); // waits for the task to complete
+
+        new Verifications() {{
+            response.resume("Earth");
+        }};
+    }
+
+    @Test
+    public void checkNoFallbackForClientErrors() {
+        PlayerAccountModificationException forbidden =
+                new PlayerAccountModificationException(Response.Status.FORBIDDEN, "nope", null);
+        executor.submit(response, () -> { throw forbidden; }, () -> "Earth");
+
+        executor.stop(); // waits for the task to complete
+
+        new Verifications() {{
+            Throwable t;
+            response.resume(t = withCapture());
+            assertEquals("Client errors should be passed through", forbidden, t);
+        }};
+    }
+
+    @Test
+    public void checkTimedUntilComplete(@Injectable MetricRegistry registry, @Mocked Timer timer,
+            @Mocked Timer.Context timing) {
+        executor.registry = registry;
+        new Expectations() {{
+            registry.timer((Metadata) any); result = timer;
+            timer.time(); result = timing;
+        }};
+
+        executor.time(response, PlayerIoExecutorTest.class, "check_timer", "test");
+
+        List<Metadata> timers = new ArrayList<>();
+        List<CompletionCallback> callbacks = new ArrayList<>();
+        new Verifications() {{
+            registry.timer(withCapture(timers));
+            response.register(withCapture(callbacks));
+            timing.stop(); times = 0;
+        }};
+        assertEquals(PlayerIoExecutorTest.class.getName() + ".check_timer", timers.get(0).getName());
+
+        callbacks.get(0).onComplete(null);
+        new Verifications() {{
+            timing.stop(); times = 1;
+        }};
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.control.PlayerKeyIndex.KeyOwner;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerKeyIndexTest {
+
+    @Tested PlayerKeyIndex index;
+    @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+
+    @Test
+    public void checkFindIsCached(@Mocked ViewResult view, @Mocked ViewResult.Row row) {
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); result = Arrays.asList(row);
+            row.getId(); result = "fish";
+            row.getValue(); result = "Chunky";
+        }};
+
+        KeyOwner owner = index.find("FISH");
+        assertEquals("fish", owner.getId());
+        assertEquals("Chunky", owner.getName());
+        assertEquals("Second lookup should come from the cache", "fish", index.find("FISH").getId());
+
+        new Verifications() {{
+            ViewQuery query;
+            dbi.queryView(query = withCapture()); times = 1;
+            assertEquals("View should be queried by digest",
+                    PlayerKeyIndex.digest("FISH".getBytes(StandardCharsets.UTF_8)), query.getKey());
+        }};
+        assertEquals(1, index.getHits());
+    }
+
+    @Test
+    public void checkChangeEvicts(@Mocked ViewResult view, @Mocked ViewResult.Row row, @Mocked DocumentChange change) {
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); returns(Arrays.asList(row), Collections.emptyList());
+            row.getId(); result = "fish";
+            change.getId(); result = "fish";
+        }};
+
+        index.find("FISH");
+        index.onChange(change, null);
+        assertEquals("Changed player should be evicted", 0, index.getSize());
+        assertNull("Replaced secret should no longer be found", index.find("FISH"));
+    }
+
+    @Test
+    public void checkMoveKeepsEntry(@Mocked ViewResult view, @Mocked ViewResult.Row row, @Mocked DocumentChange change) {
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); result = Arrays.asList(row);
+            row.getId(); result = "fish";
+            row.getValue(); result = "Chunky";
+            change.getId(); result = "fish";
+        }};
+
+        index.find("FISH");
+        index.onChange(change, player("FISH", "Mars"));
+        assertEquals("A move should not evict the player", 1, index.getSize());
+
+        index.onChange(change, player("NEWFISH", "Mars"));
+        assertEquals("A new key should evict the player", 0, index.getSize());
+    }
+
+    @Test
+    public void checkChangeDuringLookup(@Mocked ViewResult view, @Mocked ViewResult.Row row,
+            @Mocked DocumentChange other, @Mocked DocumentChange same) {
+        new Expectations() {{
+            other.getId(); result = "cat";
+            same.getId(); result = "fish";
+            dbi.queryView((ViewQuery) any); result = new Delegate<ViewResult>() {
+                @SuppressWarnings("unused")
+                ViewResult queryView(ViewQuery query) {
+                    index.onChange(other, null);
+                    return view;
+                }
+            };
+            view.getRows(); result = Arrays.asList(row);
+            row.getId(); result = "fish";
+        }};
+
+        index.find("FISH");
+        assertEquals("A change to another player should not stop caching", 1, index.getSize());
+
+        index.evict("fish");
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = new Delegate<ViewResult>() {
+                @SuppressWarnings("unused")
+                ViewResult queryView(ViewQuery query) {
+                    index.onChange(same, null);
+                    return view;
+                }
+            };
+        }};
+
+        index.find("FISH");
+        assertEquals("A change to the player during the lookup should stop caching", 0, index.getSize());
+    }
+
+    PlayerDbRecord player(String apiKey, String location) {
+        PlayerDbRecord p = new PlayerDbRecord();
+        p.setId("fish");
+        p.setName("Chunky");
+        p.setApiKey(apiKey);
+        p.setLocation(location);
+        return p;
+    }
+
+    @Test
+    public void checkBannedKeyNeverMatches() {
+        assertNull(index.find(PlayerDbRecord.ACCESS_DENIED));
+        assertNull(index.find(""));
+
+        new Verifications() {{
+            dbi.queryView((ViewQuery) any); times = 0;
+        }};
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.enterprise.concurrent.ManagedThreadFactory;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbInfo;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerListingTest {
+
+    @Tested PlayerCache cache;
+    @Tested PlayerLocationStore locations;
+    @Tested PlayerListing listing;
+    @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+    @Injectable PlayerLocationJournal journal;
+    @Injectable ManagedThreadFactory threadFactory;
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void checkLoadThenChanges(@Mocked DbInfo info, @Mocked StreamingViewResult rows,
+            @Mocked ViewResult.Row fishRow, @Mocked ViewResult.Row catRow,
+            @Mocked DocumentChange renamed, @Mocked DocumentChange deleted) throws Exception {
+
+        new Expectations() {{
+            dbi.getDbInfo(); result = info;
+            info.getUpdateSeqAsString(); result = "10-abc";
+            rows.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getDocAsNode(); result = mapper.readTree("{\"_id\":\"fish\",\"name\":\"Chunky\",\"apiKey\":\"FISH\"}");
+            catRow.getDocAsNode(); result = new Delegate<JsonNode>() {
+                @SuppressWarnings("unused")
+                JsonNode read() throws Exception {
+                    // deleted while the view is read: the row is older
+                    listing.onChange(deleted, null);
+                    return mapper.readTree("{\"_id\":\"cat\",\"name\":\"Tom\"}");
+                }
+            };
+
+            deleted.getId(); result = "cat";
+            deleted.getStringSequence(); result = "11-abc";
+            renamed.getStringSequence(); result = "12-abc";
+        }};
+
+        assertTrue(listing.refresh());
+        String etag = listing.getETag();
+        List<PlayerDbRecord> page = listing.page(null, 10);
+        assertEquals("Changes made while loading should win", 1, page.size());
+        assertEquals("Chunky", page.get(0).getName());
+        assertNull("Credentials should not be kept", page.get(0).getApiKey());
+
+        PlayerDbRecord slim = new PlayerDbRecord();
+        slim.setId("fish");
+        slim.setName("Slim");
+        slim.setApiKey("FISH");
+        listing.onChange(renamed, slim);
+
+        page = listing.page(null, 10);
+        assertEquals("Changes should be applied", "Slim", page.get(0).getName());
+        assertNull("Credentials should not be kept", page.get(0).getApiKey());
+        assertEquals("The feed's record is shared", "FISH", slim.getApiKey());
+        assertEquals(2, listing.getChangesApplied());
+        assertNotEquals(etag, listing.getETag());
+        etag = listing.getETag();
+
+        // read once: changes come from the feed
+        assertTrue(listing.refresh());
+        assertEquals(1, listing.getLoads());
+
+        new Verifications() {{
+            dbi.changes((ChangesCommand) any); times = 0;
+        }};
+
+        // moves held in memory change the tag
+        locations.writeBehind = true;
+        PlayerDbRecord fish = new PlayerDbRecord();
+        fish.setId("fish");
+        fish.setName("Slim");
+        cache.put(fish);
+        LocationChange move = new LocationChange();
+        move.setNewLocation("Mars");
+        assertTrue(locations.move("fish", move).isOk());
+        assertNotEquals(etag, listing.getETag());
+        assertEquals("Mars", listing.page("fish", 1).get(0).getLocation());
+    }
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationJournalEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PlayerLocationJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    PlayerLocationJournal open() {
+        PlayerLocationJournal journal = new PlayerLocationJournal();
+        journal.directory = folder.getRoot().getAbsolutePath();
+        journal.init();
+        return journal;
+    }
+
+    LocationChange change(String from, String to) {
+        LocationChange change = new LocationChange();
+        change.setOldLocation(from);
+        change.setNewLocation(to);
+        change.setOrigin("origin");
+        return change;
+    }
+
+    @Test
+    public void checkDisabled() {
+        PlayerLocationJournal journal = new PlayerLocationJournal();
+        journal.directory = null;
+        journal.init();
+
+        assertFalse(journal.isEnabled());
+        journal.append("fish", change("Earth", "Mars"), journal.nextSequence(), false);
+        assertTrue(journal.history("fish", 10).isEmpty());
+    }
+
+    @Test
+    public void checkHistoryAndRecovery() throws Exception {
+        PlayerLocationJournal journal = open();
+        journal.append("fish", change("Earth", "Mars"), journal.nextSequence(), false);
+        long venus = journal.nextSequence();
+        journal.append("fish", change("Mars", "Venus"), venus, true);
+        long pluto = journal.nextSequence();
+        journal.append("cat", change(null, "Pluto"), pluto, true);
+        journal.flushed(Collections.singletonMap("cat", pluto));
+
+        List<LocationJournalEntry> history = journal.history("fish", 10);
+        assertEquals(2, history.size());
+        assertEquals("Venus", history.get(0).getNewLocation());
+        assertEquals("Mars", history.get(1).getNewLocation());
+        assertEquals(1, journal.history("fish", 1).size());
+        journal.stop();
+
+        // a new instance reads it all back
+        journal = open();
+        history = journal.history("fish", 10);
+        assertEquals(2, history.size());
+        assertEquals("Venus", history.get(0).getNewLocation());
+        assertEquals(null, history.get(0).getSeq());
+
+        Map<String, LocationJournalEntry> unflushed = journal.recover();
+        assertEquals("Only the move that was not written is recovered", 1, unflushed.size());
+        assertEquals("Venus", unflushed.get("fish").getNewLocation());
+        assertTrue("Sequence should continue after restart", journal.nextSequence() > pluto);
+        journal.stop();
+    }
+
+    @Test
+    public void checkPendingNeverDropped() throws Exception {
+        PlayerLocationJournal journal = open();
+        journal.waitMillis = 10;
+        // no writer thread here: fill the queue
+        while ( journal.getDropped() == 0 ) {
+            journal.append("cat", change(null, "Pluto"), journal.nextSequence(), false);
+        }
+        long venus = journal.nextSequence();
+        journal.append("fish", change("Mars", "Venus"), venus, true);
+
+        assertEquals("Pending move should be written directly", 1, journal.getDirect());
+
+        // as if this instance had stopped without writing the queue
+        journal = open();
+        assertEquals("Venus", journal.recover().get("fish").getNewLocation());
+        journal.stop();
+    }
+
+    @Test
+    public void checkCompaction() throws Exception {
+        PlayerLocationJournal journal = new PlayerLocationJournal();
+        journal.directory = folder.getRoot().getAbsolutePath();
+        journal.segmentBytes = 1; // a new segment per batch
+        journal.maxSegments = 2;
+        journal.init();
+
+        String[] rooms = { "Earth", "Mars", "Venus", "Pluto", "Moon" };
+        for (int i = 1; i < rooms.length; i++) {
+            long seq = journal.nextSequence();
+            journal.append("fish", change(rooms[i - 1], rooms[i]), seq, true);
+            journal.drain();
+            if ( i == 2 ) {
+                journal.flushed(Collections.singletonMap("fish", seq));
+                journal.drain();
+            }
+        }
+        journal.stop();
+
+        File[] files = folder.getRoot().listFiles();
+        assertTrue("Snapshot should exist", new File(folder.getRoot(), PlayerLocationJournal.SNAPSHOT).exists());
+        assertTrue("Old segments should be removed: " + files.length, files.length <= 4);
+
+        journal = open();
+        assertEquals("Moon", journal.recover().get("fish").getNewLocation());
+        assertEquals("Moon", journal.history("fish", 10).get(0).getNewLocation());
+        journal.stop();
+    }
+
+    @Test
+    public void checkMarkersNeverDropped() throws Exception {
+        PlayerLocationJournal journal = open();
+        journal.waitMillis = 10;
+        long venus = journal.nextSequence();
+        journal.append("fish", change("Mars", "Venus"), venus, true);
+        // no writer thread here: fill the queue
+        while ( journal.getDropped() == 0 ) {
+            journal.append("cat", change(null, "Pluto"), journal.nextSequence(), false);
+        }
+        journal.flushed(Collections.singletonMap("fish", venus));
+        assertEquals("Marker should be written directly", 1, journal.getDirect());
+        journal.drain();
+
+        journal = open();
+        assertTrue("A written move should not be replayed", journal.recover().isEmpty());
+        journal.stop();
+    }
+
+    @Test
+    public void checkCompactionBySequence() throws Exception {
+        PlayerLocationJournal journal = new PlayerLocationJournal();
+        journal.directory = folder.getRoot().getAbsolutePath();
+        journal.segmentBytes = 1; // a new segment per batch
+        journal.maxSegments = 2;
+        journal.init();
+
+        // the newer move reached the file first (written directly)
+        long mars = journal.nextSequence();
+        long moon = journal.nextSequence();
+        journal.append("fish", change("Venus", "Moon"), moon, true);
+        journal.drain();
+        journal.append("fish", change("Earth", "Mars"), mars, true);
+        journal.drain();
+        for (int i = 0; i < 4; i++) {
+            journal.append("cat", change(null, "Pluto"), journal.nextSequence(), false);
+            journal.drain();
+        }
+        journal.stop();
+        assertTrue(journal.getCompactions() > 0);
+
+        journal = open();
+        assertEquals("Moon", journal.recover().get("fish").getNewLocation());
+        journal.stop();
+    }
+
+    @Test
+    public void checkStopWritesQueue() throws Exception {
+        PlayerLocationJournal journal = new PlayerLocationJournal();
+        journal.directory = folder.getRoot().getAbsolutePath();
+        journal.threadFactory = Thread::new;
+        journal.init();
+
+        for (int i = 0; i < 1000; i++) {
+            journal.append("player" + i, change(null, "Mars"), journal.nextSequence(), true);
+        }
+        journal.stop();
+
+        journal = open();
+        assertEquals("Every queued move should be written", 1000, journal.recover().size());
+        journal.stop();
+    }
+}
@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.ws.rs.core.Response;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.StreamingViewResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.entity.PlayerMove;
+import org.gameontext.player.entity.PlayerMoveResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class PlayerLocationStoreTest {
+
+    @Tested(availableDuringSetup = true) PlayerCache cache;
+    @Tested(availableDuringSetup = true) PlayerLocationStore store;
+    @Injectable CouchDbConnector dbi;
+    @Injectable PlayerChangesFeed changesFeed;
+    @Injectable PlayerLocationJournal journal;
+    @Injectable ManagedThreadFactory threadFactory;
+
+    PlayerDbRecord playerDb;
+
+    @Before
+    public void initPlayer() {
+        playerDb = new PlayerDbRecord();
+        playerDb.setId("fish");
+        playerDb.setName("Chunky");
+        playerDb.setRev("2-abc");
+        playerDb.setLocation("Earth");
+        store.writeBehind = true;
+    }
+
+    LocationChange change(String from, String to) {
+        LocationChange change = new LocationChange();
+        change.setOldLocation(from);
+        change.setNewLocation(to);
+        return change;
+    }
+
+    @Test
+    public void checkWriteBehindCoalesces() {
+        cache.put(playerDb);
+
+        LocationUpdateResult result = store.move("fish", change("Earth", "Mars"));
+        assertTrue("Move should be applied", result.isOk());
+        assertEquals("Mars", result.getPlayer().getLocation());
+        assertTrue("Second move should be applied", store.move("fish", change("Mars", "Venus")).isOk());
+
+        assertEquals("Reads should see the pending location", "Venus", store.getLocation("fish"));
+        assertEquals("Records should be given the pending location", "Venus", store.current(playerDb).getLocation());
+        assertEquals(1, store.getPending());
+        assertEquals(1, store.getCoalesced());
+
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); result = new ArrayList<>(Arrays.asList(playerDb.withLocation("Earth")));
+            dbi.executeBulk((Collection<?>) any); result = Collections.emptyList();
+        }};
+
+        store.flush();
+
+        new Verifications() {{
+            Collection<PlayerDbRecord> written;
+            dbi.executeBulk(written = withCapture()); times = 1;
+            assertEquals("One write for both moves", 1, written.size());
+            assertEquals("Latest location should be written", "Venus", written.iterator().next().getLocation());
+
+            dbi.update(any); times = 0;
+        }};
+        assertEquals(0, store.getPending());
+    }
+
+    @Test
+    public void checkWriteBehindConflict() {
+        cache.put(playerDb);
+
+        LocationUpdateResult result = store.move("fish", change("Mars", "Venus"));
+        assertFalse("Move from the wrong location should fail", result.isOk());
+        assertEquals("Result should carry the current location", "Earth", result.getLocation());
+        assertEquals(0, store.getPending());
+    }
+
+    @Test
+    public void checkDeletedPlayerDropped() {
+        cache.put(playerDb);
+        store.move("fish", change("Earth", "Mars"));
+
+        List<PlayerDbRecord> none = new ArrayList<>();
+        none.add(null);
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); result = none;
+        }};
+
+        store.flush();
+
+        new Verifications() {{
+            dbi.executeBulk((Collection<?>) any); times = 0;
+        }};
+        assertEquals(0, store.getPending());
+    }
+
+    @Test
+    public void checkLocationDocCreatedOnFirstMove() {
+        store.writeBehind = false;
+        store.locationDocs = true;
+        cache.put(playerDb);
+
+        new Expectations() {{
+            dbi.find(PlayerLocationRecord.class, "loc:fish"); result = null;
+        }};
+
+        LocationUpdateResult result = store.move("fish", change("Earth", "Mars"));
+        assertTrue("Move from the player document location should be applied", result.isOk());
+
+        new Verifications() {{
+            PlayerLocationRecord doc;
+            dbi.create(doc = withCapture()); times = 1;
+            assertEquals("loc:fish", doc.getId());
+            assertEquals("Mars", doc.getLocation());
+
+            // the player document is left alone
+            dbi.update(any); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkLocationDocUpdated() {
+        store.writeBehind = false;
+        store.locationDocs = true;
+        cache.put(playerDb);
+
+        PlayerLocationRecord doc = new PlayerLocationRecord("fish");
+        doc.setLocation("Mars");
+        new Expectations() {{
+            dbi.find(PlayerLocationRecord.class, "loc:fish"); result = doc;
+        }};
+
+        assertFalse("Location document should win over the player document",
+                store.move("fish", change("Earth", "Venus")).isOk());
+        assertTrue(store.move("fish", change("Mars", "Venus")).isOk());
+
+        new Verifications() {{
+            dbi.update(doc); times = 1;
+            dbi.create(any); times = 0;
+        }};
+        assertEquals("Venus", doc.getLocation());
+    }
+
+    @Test
+    public void checkLocationDocCached(@Mocked DocumentChange change) {
+        store.writeBehind = false;
+        store.locationDocs = true;
+
+        PlayerLocationRecord doc = new PlayerLocationRecord("fish");
+        doc.setLocation("Mars");
+        new Expectations() {{
+            dbi.find(PlayerLocationRecord.class, "loc:fish"); result = doc;
+            change.getId(); result = "loc:fish";
+        }};
+
+        assertEquals("Mars", store.getLocation("fish"));
+        assertEquals("Mars", store.getLocation("fish"));
+
+        // moved by another instance
+        store.onChange(change, playerDb.withLocation("Venus"));
+        assertEquals("Venus", store.getLocation("fish"));
+
+        new Verifications() {{
+            dbi.find(PlayerLocationRecord.class, "loc:fish"); times = 1;
+        }};
+    }
+
+    @Test
+    public void checkBulkMove() {
+        store.writeBehind = false;
+
+        PlayerDbRecord cat = new PlayerDbRecord();
+        cat.setId("cat");
+        cat.setName("Tom");
+        cat.setLocation("Mars");
+
+        PlayerDbRecord dog = new PlayerDbRecord();
+        dog.setId("dog");
+        dog.setName("Rex");
+        dog.setLocation("Earth");
+
+        List<PlayerDbRecord> docs = new ArrayList<>(Arrays.asList(playerDb, cat, dog, null));
+        DocumentOperationResult lost = DocumentOperationResult.newInstance("dog", "conflict", "Document update conflict.");
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any, PlayerDbRecord.class); result = docs;
+            dbi.executeBulk((Collection<?>) any); result = Collections.singletonList(lost);
+        }};
+
+        List<String> moved = new ArrayList<>();
+        List<PlayerMoveResult> results = store.moveAll(Arrays.asList(
+                new PlayerMove("fish", "Earth", "firstroom", null),
+                new PlayerMove("cat", "Earth", "firstroom", null),
+                new PlayerMove("dog", "Earth", "firstroom", null),
+                new PlayerMove("bird", "Earth", "firstroom", null)),
+                (move, result) -> moved.add(move.getPlayerId()));
+
+        assertEquals(4, results.size());
+        assertEquals(PlayerMoveResult.OK, results.get(0).getStatus());
+        assertEquals("firstroom", results.get(0).getPlayer().getLocation());
+        assertEquals("Player elsewhere", PlayerMoveResult.CONFLICT, results.get(1).getStatus());
+        assertEquals("Mars", results.get(1).getLocation());
+        assertEquals("Lost a race", PlayerMoveResult.CONFLICT, results.get(2).getStatus());
+        assertEquals(PlayerMoveResult.NOT_FOUND, results.get(3).getStatus());
+        assertEquals("Only applied moves are announced", Collections.singletonList("fish"), moved);
+
+        new Verifications() {{
+            Collection<PlayerDbRecord> written;
+            dbi.executeBulk(written = withCapture()); times = 1;
+            assertEquals("fish and dog written together", 2, written.size());
+
+            dbi.update(any); times = 0;
+            journal.append("fish", (LocationChange) any, anyLong, false); times = 1;
+            journal.append("dog", (LocationChange) any, anyLong, anyBoolean); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkPlayersAt(@Mocked ViewResult view, @Mocked ViewResult.Row fishRow, @Mocked ViewResult.Row catRow) {
+        cache.put(playerDb);
+        store.move("fish", change("Earth", "Mars")); // pending, not indexed yet
+
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); result = Arrays.asList(fishRow, catRow);
+            fishRow.getId(); result = "fish";
+            catRow.getId(); result = "loc:cat";
+        }};
+
+        Set<String> earth = store.playersAt("Earth");
+        assertEquals("Players that moved away should be left out", Collections.singleton("cat"), earth);
+    }
+
+    @Test
+    public void checkOccupancyIndex(@Mocked StreamingViewResult rows, @Mocked ViewResult.Row fishRow,
+            @Mocked ViewResult.Row catRow, @Mocked DocumentChange change) throws Exception {
+        store.writeBehind = false;
+
+        new Expectations() {{
+            rows.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getId(); result = "fish";
+            fishRow.getKey(); result = "Earth";
+            catRow.getId(); result = "cat";
+            catRow.getKey(); result = "firstroom";
+        }};
+        store.buildIndex();
+
+        assertEquals(Collections.singleton("fish"), store.playersAt("Earth"));
+        assertEquals(2, store.getIndexedPlayers());
+
+        // moved by another instance
+        new Expectations() {{
+            change.getId(); result = "fish";
+        }};
+        store.onChange(change, playerDb.withLocation("Mars"));
+
+        assertTrue(store.playersAt("Earth").isEmpty());
+        assertEquals(Collections.singleton("fish"), store.playersAt("Mars"));
+
+        Map<String, Long> counts = store.countPlayers(Arrays.asList("Mars", "Earth"));
+        assertEquals(Long.valueOf(1), counts.get("Mars"));
+        assertEquals(Long.valueOf(0), counts.get("Earth"));
+        assertEquals(2, store.countPlayers(null).size());
+
+        new Verifications() {{
+            // answered from memory
+            dbi.queryView((ViewQuery) any); times = 0;
+        }};
+    }
+
+    @Test
+    public void checkIndexAge(@Mocked StreamingViewResult rows) {
+        new Expectations() {{
+            rows.iterator(); result = Collections.emptyIterator();
+            changesFeed.getLastRead(); result = System.currentTimeMillis() - 90000;
+        }};
+        assertEquals("Index should age from the last read of the changes feed", 90, store.getIndexAge());
+
+        store.buildIndex();
+        assertEquals("Index should be current once built", 0, store.getIndexAge());
+    }
+
+    @Test
+    public void checkForEachLocation(@Mocked StreamingViewResult rows, @Mocked ViewResult.Row fishRow,
+            @Mocked ViewResult.Row catRow) throws Exception {
+        cache.put(playerDb);
+        store.move("fish", change("Earth", "Mars")); // pending
+
+        new Expectations() {{
+            rows.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getId(); result = "fish";
+            fishRow.getValueAsNode(); result = new TextNode("Earth");
+            catRow.getId(); result = "cat";
+            catRow.getValueAsNode(); result = NullNode.getInstance();
+        }};
+
+        Map<String, String> seen = new LinkedHashMap<>();
+        store.forEachLocation(rows, seen::put, null);
+
+        assertEquals("Mars", seen.get("fish"));
+        assertEquals("firstroom", seen.get("cat"));
+    }
+
+    @Test
+    public void checkCountFromView(@Mocked ViewResult view, @Mocked ViewResult.Row row) throws Exception {
+        store.writeBehind = false;
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = view;
+            view.getRows(); result = Arrays.asList(row);
+            row.getKey(); result = "Earth";
+            row.getValueAsInt(); result = 3;
+        }};
+
+        Map<String, Long> counts = store.countPlayers(Arrays.asList("Earth", "Mars"));
+        assertEquals(Long.valueOf(3), counts.get("Earth"));
+        assertEquals("Empty rooms should be included", Long.valueOf(0), counts.get("Mars"));
+
+        new Verifications() {{
+            ViewQuery query;
+            dbi.queryView(query = withCapture());
+            assertTrue(query.isGroup());
+            assertTrue("Only the requested rooms", query.hasMultipleKeys());
+        }};
+    }
+
+    @Test
+    public void checkCountWithPendingMoves(@Mocked StreamingViewResult rows, @Mocked ViewResult.Row fishRow,
+            @Mocked ViewResult.Row catRow) throws Exception {
+        cache.put(playerDb);
+        store.move("fish", change("Earth", "Mars")); // pending
+
+        new Expectations() {{
+            dbi.queryForStreamingView((ViewQuery) any); result = rows;
+            rows.iterator(); result = Arrays.asList(fishRow, catRow).iterator();
+            fishRow.getId(); result = "fish";
+            fishRow.getValueAsNode(); result = new TextNode("Earth");
+            catRow.getId(); result = "cat";
+            catRow.getValueAsNode(); result = NullNode.getInstance();
+        }};
+
+        Map<String, Long> counts = store.countPlayers(Arrays.asList("Earth", "Mars", "firstroom"));
+        assertEquals("Pending moves should be counted", Long.valueOf(1), counts.get("Mars"));
+        assertEquals(Long.valueOf(0), counts.get("Earth"));
+        assertEquals(Long.valueOf(1), counts.get("firstroom"));
+
+        new Verifications() {{
+            // the reduce lags pending moves
+            dbi.queryView((ViewQuery) any); times = 0;
+            ViewQuery query;
+            dbi.queryForStreamingView(query = withCapture());
+            assertEquals("locationById", query.getViewName());
+            assertFalse(query.isIncludeDocs());
+            rows.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void checkCountWithoutReduce() throws Exception {
+        store.writeBehind = false;
+        new Expectations() {{
+            dbi.queryView((ViewQuery) any); result = new DbAccessException("400 Bad Request\nResponse Body: \n"
+                    + "{\"error\":\"query_parse_error\",\"reason\":\"Reduce is invalid for map-only views.\"}");
+        }};
+
+        try {
+            store.countPlayers(null);
+            fail("Expected account modification exception");
+        } catch (PlayerAccountModificationException e) {
+            assertEquals(Response.Status.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+    }
+}
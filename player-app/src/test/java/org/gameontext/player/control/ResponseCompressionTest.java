@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.gameontext.player.utils.CompressingOutputStream.Encoding;
+import org.junit.Test;
+
+public class ResponseCompressionTest {
+
+    @Test
+    public void checkNegotiate() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate("identity"));
+        assertEquals(Encoding.GZIP, ResponseCompression.negotiate("gzip, deflate, br"));
+        assertEquals(Encoding.DEFLATE, ResponseCompression.negotiate("deflate"));
+        assertEquals(Encoding.DEFLATE, ResponseCompression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(Encoding.GZIP, ResponseCompression.negotiate("*"));
+        assertNull(ResponseCompression.negotiate("gzip;q=0, *;q=0"));
+    }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.gameontext.player.control.RoomSubscriptions.Subscriber;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class RoomSubscriptionsTest {
+
+    @Tested RoomSubscriptions subscriptions;
+    @Injectable PlayerLocationStore locations;
+
+    /** Collects messages, completing sends only when asked to */
+    static class FakeSink implements RoomSubscriptions.Sink {
+        final List<String> sent = new ArrayList<>();
+        final List<Runnable> inFlight = new ArrayList<>();
+        String closed;
+
+        @Override
+        public void send(String text, Runnable done) {
+            sent.add(text);
+            inFlight.add(done);
+        }
+
+        @Override
+        public void close(String reason) {
+            closed = reason;
+        }
+
+        void complete() {
+            while ( !inFlight.isEmpty() ) {
+                inFlight.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void checkJoinAndLeave() {
+        FakeSink sink = new FakeSink();
+        Subscriber subscriber = subscriptions.connect(sink);
+        subscriptions.subscribe(subscriber, Arrays.asList("Earth", "Mars"));
+
+        subscriptions.onMove("fish", "Earth", "Mars");
+        subscriptions.onMove("cat", "Venus", "Jupiter"); // not subscribed
+        assertEquals("One send at a time", 1, sink.sent.size());
+        sink.complete();
+
+        assertEquals(2, sink.sent.size());
+        assertEquals("{\"type\":\"leave\",\"siteId\":\"Earth\",\"playerId\":\"fish\"}", sink.sent.get(0));
+        assertEquals("{\"type\":\"join\",\"siteId\":\"Mars\",\"playerId\":\"fish\"}", sink.sent.get(1));
+        sink.complete();
+        assertEquals(2, subscriptions.getSent());
+
+        subscriptions.unsubscribe(subscriber, Collections.singleton("Mars"));
+        subscriptions.onMove("fish", "Mars", "Earth");
+        assertEquals("Only the join in Earth should be sent", 3, sink.sent.size());
+        assertTrue(sink.sent.get(2).contains("join"));
+    }
+
+    @Test
+    public void checkSlowConsumerDropped() {
+        FakeSink slow = new FakeSink();
+        Subscriber subscriber = subscriptions.connect(slow);
+        subscriptions.subscribe(subscriber, Collections.singleton("Earth"));
+
+        FakeSink fast = new FakeSink();
+        subscriptions.subscribe(subscriptions.connect(fast), Collections.singleton("Earth"));
+
+        // never completes: one in flight, then the buffer fills
+        for (int i = 0; i <= 101; i++) {
+            subscriptions.onMove("player" + i, null, "Earth");
+            fast.complete();
+        }
+
+        assertTrue("Slow subscriber should be disconnected", slow.closed != null);
+        assertNull(fast.closed);
+        assertEquals(102, fast.sent.size());
+        assertEquals(1, subscriptions.getSlowConsumers());
+        assertEquals(1, subscriptions.getSubscribers());
+    }
+
+    @Test
+    public void checkRoomSharedAfterLeave() {
+        FakeSink first = new FakeSink();
+        Subscriber one = subscriptions.connect(first);
+        subscriptions.subscribe(one, Collections.singleton("Earth"));
+        FakeSink second = new FakeSink();
+        Subscriber two = subscriptions.connect(second);
+        subscriptions.subscribe(two, Collections.singleton("Earth"));
+
+        subscriptions.unsubscribe(one);
+        subscriptions.onMove("fish", null, "Earth");
+        assertEquals(0, first.sent.size());
+        assertEquals(1, second.sent.size());
+        assertEquals(1, subscriptions.getSubscribers());
+    }
+
+    @Test
+    public void checkRoomLimit() {
+        Subscriber subscriber = subscriptions.connect(new FakeSink());
+        List<String> rooms = new ArrayList<>();
+        for (int i = 0; i <= subscriptions.maxRooms; i++) {
+            rooms.add("room" + i);
+        }
+
+        assertFalse(subscriptions.subscribe(subscriber, rooms));
+        assertEquals(subscriptions.maxRooms, subscriber.rooms.size());
+        assertTrue("Rooms already subscribed to do not count twice",
+                subscriptions.subscribe(subscriber, Collections.singleton("room0")));
+    }
+}
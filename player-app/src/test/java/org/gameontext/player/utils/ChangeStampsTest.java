@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChangeStampsTest {
+
+    @Test
+    public void checkChangedSince() {
+        ChangeStamps changes = new ChangeStamps(10);
+        long before = changes.now();
+        changes.changed("cat");
+
+        assertTrue(changes.changedSince("cat", before));
+        assertFalse("Other ids are unaffected", changes.changedSince("fish", before));
+        assertFalse(changes.changedSince("cat", changes.now()));
+    }
+
+    @Test
+    public void checkForgottenCountsAsChanged() {
+        ChangeStamps changes = new ChangeStamps(2);
+        long before = changes.now();
+        changes.changed("cat");
+        changes.changed("dog");
+        changes.changed("cat");
+        changes.changed("bird");
+
+        assertTrue("dog was forgotten, it may have changed", changes.changedSince("dog", before));
+        assertTrue("so may anything else", changes.changedSince("fish", before));
+        assertFalse(changes.changedSince("fish", changes.now()));
+    }
+}
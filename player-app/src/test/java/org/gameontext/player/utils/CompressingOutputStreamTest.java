@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.gameontext.player.utils.CompressingOutputStream.Encoding;
+import org.junit.Test;
+
+public class CompressingOutputStreamTest {
+
+    static byte[] players(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            json.append("{\"_id\":\"player").append(i).append("\",\"name\":\"Chunky\",\"location\":\"firstroom\"},");
+        }
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        int n;
+        while ( (n = in.read(b)) > 0 ) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void checkSmallPassedThrough() throws IOException {
+        AtomicInteger compressed = new AtomicInteger();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressingOutputStream stream = new CompressingOutputStream(out, Encoding.GZIP, 1024, compressed::incrementAndGet);
+
+        byte[] data = players(2);
+        stream.write(data);
+        stream.flush();
+        assertEquals("Small output should be held back", 0, out.size());
+        stream.finish();
+
+        assertFalse(stream.isCompressing());
+        assertEquals(0, compressed.get());
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void checkGzip() throws IOException {
+        AtomicInteger compressed = new AtomicInteger();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressingOutputStream stream = new CompressingOutputStream(out, Encoding.GZIP, 1024, compressed::incrementAndGet);
+
+        byte[] data = players(1000);
+        // written in pieces, with flushes between, as streamed responses are
+        for (int off = 0; off < data.length; off += 700) {
+            stream.write(data, off, Math.min(700, data.length - off));
+            stream.flush();
+        }
+        assertTrue(stream.isCompressing());
+        stream.finish();
+
+        assertEquals(1, compressed.get());
+        assertTrue("Output should be smaller", out.size() < data.length / 4);
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void checkDeflate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] data = players(100);
+        for (int i = 0; i < 2; i++) {
+            // the second stream reuses the pooled deflater
+            out.reset();
+            CompressingOutputStream stream = new CompressingOutputStream(out, Encoding.DEFLATE, 1024, () -> {});
+            stream.write(data);
+            stream.finish();
+            assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        }
+    }
+}
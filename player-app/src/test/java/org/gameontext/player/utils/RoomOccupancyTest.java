@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class RoomOccupancyTest {
+
+    @Test
+    public void checkMoves() {
+        RoomOccupancy occupancy = new RoomOccupancy();
+        occupancy.put("fish", "Earth");
+        occupancy.put("cat", "Earth");
+        assertEquals(new HashSet<>(Arrays.asList("fish", "cat")), occupancy.playersAt("Earth"));
+
+        occupancy.put("fish", "Mars");
+        assertEquals(new HashSet<>(Arrays.asList("cat")), occupancy.playersAt("Earth"));
+        assertEquals("Mars", occupancy.roomOf("fish"));
+
+        occupancy.remove("cat");
+        assertTrue(occupancy.playersAt("Earth").isEmpty());
+        assertNull(occupancy.roomOf("cat"));
+        assertEquals("Empty rooms should be dropped", 1, occupancy.getRoomCount());
+        assertEquals(1, occupancy.getPlayerCount());
+    }
+}
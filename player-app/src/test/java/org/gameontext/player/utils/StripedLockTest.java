@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.gameontext.player.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedLockTest {
+
+    @Test
+    public void checkStripesRoundedUp() {
+        assertEquals(1, new StripedLock(0).size());
+        assertEquals(64, new StripedLock(64).size());
+        assertEquals(128, new StripedLock(100).size());
+    }
+
+    @Test
+    public void checkSameKeyWaits() throws Exception {
+        StripedLock locks = new StripedLock(16);
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(locks.tryLock("player", 0, TimeUnit.MILLISECONDS));
+        Thread other = new Thread(() -> {
+            waiting.countDown();
+            try {
+                if ( locks.tryLock("player", 5, TimeUnit.SECONDS) ) {
+                    try {
+                        done.countDown();
+                    } finally {
+                        locks.unlock("player");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        other.start();
+
+        waiting.await();
+        assertEquals(false, done.await(50, TimeUnit.MILLISECONDS));
+        locks.unlock("player");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        other.join();
+
+        int stripe = locks.stripe("player");
+        assertEquals(1, locks.getContended(stripe));
+        assertEquals(1, locks.getContended());
+        assertEquals(1, locks.getMaxContended());
+    }
+
+    @Test
+    public void checkWaitIsBounded() throws Exception {
+        StripedLock locks = new StripedLock(16);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                locks.tryLock("player", 0, TimeUnit.MILLISECONDS);
+                held.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                locks.unlock("player");
+            }
+        });
+        holder.start();
+        held.await();
+
+        assertFalse("Wait should time out", locks.tryLock("player", 20, TimeUnit.MILLISECONDS));
+        assertEquals(1, locks.getContended());
+
+        Thread.currentThread().interrupt();
+        try {
+            locks.tryLock("player", 5, TimeUnit.SECONDS);
+            fail("Wait should be interruptible");
+        } catch (InterruptedException e) {
+            // expected
+        }
+
+        release.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void checkUncontended() throws Exception {
+        StripedLock locks = new StripedLock(16);
+        assertTrue(locks.tryLock("a", 0, TimeUnit.MILLISECONDS));
+        locks.unlock("a");
+        assertTrue(locks.tryLock("a", 0, TimeUnit.MILLISECONDS));
+        locks.unlock("a");
+        assertEquals(0, locks.getContended());
+        assertEquals(0, locks.getWaitMillis());
+    }
+}